@@ -0,0 +1,42 @@
+package org.terrier.lucene.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.PostingIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+/** Reads of the direct index (forward postings of a document), and of document lengths */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectIndexBenchmark {
+
+    @Benchmark
+    public void directPostings(IndexState state, IndexState.Cursor cursor, Blackhole bh) throws IOException {
+        final DocumentIndex doi = state.directIndex.getDocumentIndex();
+        final PostingIndex<?> direct = state.directIndex.getDirectIndex();
+        IterablePosting ip = direct.getPostings(doi.getDocumentEntry(state.docids[cursor.next(state.docids.length)]));
+        while (ip.next() != IterablePosting.EOL) {
+            bh.consume(ip.getId());
+            bh.consume(ip.getFrequency());
+        }
+        ip.close();
+    }
+
+    @Benchmark
+    public int documentLength(IndexState state, IndexState.Cursor cursor) throws IOException {
+        return state.index.getDocumentIndex().getDocumentLength(state.docids[cursor.next(state.docids.length)]);
+    }
+}
@@ -0,0 +1,109 @@
+package org.terrier.lucene.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.terrier.lucene.LuceneIndexFactory;
+import org.terrier.lucene.SyntheticIndexGenerator;
+import org.terrier.querying.IndexRef;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexFactory;
+
+/** A synthetic Lucene index, loaded as a Terrier index. Indices are generated once for each
+ * combination of parameters, and kept below the <tt>bench.dir</tt> system property (by default
+ * <tt>terrier-lucene-bench</tt> in the temporary directory), such that repeated runs measure
+ * identical indices. */
+@State(Scope.Benchmark)
+public class IndexState {
+
+    static final int NUM_TERMS = 1024;
+    static final int NUM_DOCIDS = 1024;
+
+    @Param({ "100000" })
+    public int numDocs;
+
+    @Param({ "100000" })
+    public int vocabularySize;
+
+    @Param({ "1.0" })
+    public double zipfExponent;
+
+    @Param({ "1" })
+    public int segments;
+
+    @Param({ "false" })
+    public boolean positions;
+
+    /** the index, loaded by lucene: */
+    public Index index;
+    /** the same index, loaded by directlucene: */
+    public Index directIndex;
+    /** terms to look up, from the most frequent to the rarest */
+    public String[] terms;
+    /** docids to look up, in random order */
+    public int[] docids;
+
+    Path location() {
+        String base = System.getProperty("bench.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "terrier-lucene-bench").toString());
+        return Paths.get(base, String.format("d%d-v%d-z%s-s%d-p%b", numDocs, vocabularySize, zipfExponent,
+                segments, positions));
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path dir = location();
+        Path done = dir.resolve("generated");
+        if (!Files.exists(done)) {
+            Files.createDirectories(dir);
+            new SyntheticIndexGenerator()
+                    .setNumberOfDocuments(numDocs)
+                    .setVocabularySize(vocabularySize)
+                    .setZipfExponent(zipfExponent)
+                    .setSegments(segments)
+                    .setPositions(positions)
+                    .setTermVectors(true)
+                    .generate(dir);
+            Files.createFile(done);
+        }
+        index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + dir));
+        directIndex = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + dir));
+
+        // ranks spaced geometrically, so that frequent and rare terms are equally represented
+        terms = new String[NUM_TERMS];
+        for (int i = 0; i < NUM_TERMS; i++)
+            terms[i] = SyntheticIndexGenerator.term(
+                    (int) Math.pow(vocabularySize, i / (double) NUM_TERMS) - 1);
+        Random random = new Random(42);
+        docids = new int[NUM_DOCIDS];
+        for (int i = 0; i < NUM_DOCIDS; i++)
+            docids[i] = random.nextInt(numDocs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        directIndex.close();
+    }
+
+    /** the position of a benchmark thread in the terms and docids */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        public int next(int modulo) {
+            int rtr = next;
+            next = (next + 1) % modulo;
+            return rtr;
+        }
+    }
+}
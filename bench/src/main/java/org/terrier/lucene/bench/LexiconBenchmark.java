@@ -0,0 +1,26 @@
+package org.terrier.lucene.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terrier.structures.LexiconEntry;
+
+/** Lexicon lookups of single terms */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LexiconBenchmark {
+
+    @Benchmark
+    public LexiconEntry lookup(IndexState state, IndexState.Cursor cursor) {
+        return state.index.getLexicon().getLexiconEntry(state.terms[cursor.next(state.terms.length)]);
+    }
+}
@@ -0,0 +1,31 @@
+package org.terrier.lucene.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Docno fetches, singly and in batches as when decorating a result set of 1000 documents */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetaBenchmark {
+
+    @Benchmark
+    public String docno(IndexState state, IndexState.Cursor cursor) throws IOException {
+        return state.index.getMetaIndex().getItem("docno", state.docids[cursor.next(state.docids.length)]);
+    }
+
+    @Benchmark
+    public String[] docnoBatch(IndexState state) throws IOException {
+        return state.index.getMetaIndex().getItems("docno", state.docids);
+    }
+}
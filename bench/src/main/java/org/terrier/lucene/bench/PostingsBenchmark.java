@@ -0,0 +1,71 @@
+package org.terrier.lucene.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.postings.BlockPosting;
+import org.terrier.structures.postings.IterablePosting;
+
+/** Traversal of whole posting lists, and conjunctive intersection of two posting lists
+ * using next(target). Positions are read if the index has them (<tt>-p positions=true</tt>). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostingsBenchmark {
+
+    static IterablePosting open(Index index, String term) throws IOException {
+        LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+        return le == null ? null : index.getInvertedIndex().getPostings(le);
+    }
+
+    @Benchmark
+    public void traverse(IndexState state, IndexState.Cursor cursor, Blackhole bh) throws IOException {
+        IterablePosting ip = open(state.index, state.terms[cursor.next(state.terms.length)]);
+        if (ip == null)
+            return;
+        final boolean positions = ip instanceof BlockPosting;
+        while (ip.next() != IterablePosting.EOL) {
+            bh.consume(ip.getFrequency());
+            bh.consume(ip.getDocumentLength());
+            if (positions)
+                bh.consume(((BlockPosting) ip).getPositions());
+        }
+        ip.close();
+    }
+
+    /** intersects a term with a more frequent term, as a conjunctive DAAT matching would */
+    @Benchmark
+    public int intersect(IndexState state, IndexState.Cursor cursor) throws IOException {
+        int i = cursor.next(state.terms.length / 2);
+        IterablePosting frequent = open(state.index, state.terms[i]);
+        IterablePosting rare = open(state.index, state.terms[i + state.terms.length / 2]);
+        int matches = 0;
+        if (frequent != null && rare != null) {
+            int docid;
+            while ((docid = rare.next()) != IterablePosting.EOL) {
+                int other = frequent.next(docid);
+                if (other == IterablePosting.EOL)
+                    break;
+                if (other == docid)
+                    matches++;
+            }
+        }
+        if (frequent != null)
+            frequent.close();
+        if (rare != null)
+            rare.close();
+        return matches;
+    }
+}
@@ -0,0 +1,57 @@
+package org.terrier.lucene.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terrier.querying.Manager;
+import org.terrier.querying.ManagerFactory;
+import org.terrier.querying.ScoredDocList;
+import org.terrier.querying.SearchRequest;
+
+/** End-to-end retrieval of three-term queries through a Terrier Manager, including
+ * decoration of the results with their docnos */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RetrievalBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ManagerState {
+        /** Terrier's BM25, or LuceneBM25, which scores postings from a table of their norms */
+        @Param({"BM25", "org.terrier.lucene.LuceneBM25"})
+        String wmodel;
+        Manager manager;
+        String[] queries;
+
+        @Setup(Level.Trial)
+        public void setup(IndexState state) {
+            manager = ManagerFactory._from_(state.index.getIndexRef());
+            // each query has a frequent, a medium and a rare term
+            final int third = state.terms.length / 3;
+            queries = new String[third];
+            for (int i = 0; i < third; i++)
+                queries[i] = state.terms[i] + " " + state.terms[i + third] + " " + state.terms[i + 2 * third];
+        }
+    }
+
+    @Benchmark
+    public ScoredDocList retrieve(ManagerState ms, IndexState.Cursor cursor) {
+        SearchRequest srq = ms.manager.newSearchRequestFromQuery(ms.queries[cursor.next(ms.queries.length)]);
+        srq.setControl(SearchRequest.CONTROL_WMODEL, ms.wmodel);
+        ms.manager.runSearchRequest(srq);
+        return srq.getResults();
+    }
+}
@@ -0,0 +1,14 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+
+import org.terrier.structures.MetaIndex;
+
+/** A MetaIndex that can resolve many values to docids in one call, e.g. the docnos of a
+ * run to be reranked. Implemented by the MetaIndex of LuceneIndex and CompositeLuceneIndex. */
+public interface BatchMetaIndex extends MetaIndex {
+
+    /** Returns the docid of the document with each value of the key, or -1 for values
+     * that are not found */
+    int[] getDocuments(String key, String[] values) throws IOException;
+}
@@ -0,0 +1,23 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+
+import org.terrier.matching.models.WeightingModel;
+
+/** A posting list that exposes the per-block impacts stored by Lucene, such that
+ * dynamic pruning strategies such as Block-Max WAND can obtain upper bounds on the
+ * score of the postings within a block, without decoding them. Obtained from
+ * LuceneIndex.getInvertedIndex() when the <tt>lucene.impacts</tt> property is set. */
+public interface BlockMaxPosting {
+
+    /** Moves the skip data (but not the postings) such that the current block contains
+     * target, and returns the last docid of that block. */
+    int advanceShallow(int target) throws IOException;
+
+    /** Returns the maximum frequency within the current block. */
+    int getBlockMaxFrequency() throws IOException;
+
+    /** Returns an upper bound on the score that the specified weighting model can
+     * give to any posting within the current block. */
+    double getBlockMaxScore(WeightingModel wm) throws IOException;
+}
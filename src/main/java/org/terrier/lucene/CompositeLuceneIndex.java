@@ -0,0 +1,950 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.IntSupplier;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.terrier.lucene.LuceneIndex.FieldLuceneLexiconEntry;
+import org.terrier.lucene.LuceneIndex.LuceneDocumentIndexEntry;
+import org.terrier.lucene.LuceneIndex.LuceneLexiconEntry;
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.IndexRef;
+import org.terrier.structures.BasicLexiconEntry;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.FieldDocumentIndex;
+import org.terrier.structures.FieldEntryStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.Pointer;
+import org.terrier.structures.PostingIndex;
+import org.terrier.structures.postings.BasicPostingImpl;
+import org.terrier.structures.postings.BlockPosting;
+import org.terrier.structures.postings.BlockPostingImpl;
+import org.terrier.structures.postings.FieldPosting;
+import org.terrier.structures.postings.FieldPostingImpl;
+import org.terrier.structures.postings.IterablePosting;
+import org.terrier.structures.postings.IterablePostingImpl;
+import org.terrier.structures.postings.WritablePosting;
+
+/** An index over all segments (leaves) of a Lucene DirectoryReader. Each segment is accessed
+ * through its own LuceneIndex, while this class presents a single index whose docids are
+ * the docids of the DirectoryReader (i.e. the docid within the segment plus the docBase of
+ * the segment). Lexicon entries carry statistics summed over all segments, as well as the
+ * entry of each segment, such that posting lists are opened for each segment without
+ * further lookups. Posting lists of the segments are concatenated, and skipping with
+ * next(target) goes directly to the segment containing the target. If the segments are
+ * DirectLuceneIndex instances, they share one termid space. */
+public class CompositeLuceneIndex extends Index {
+
+    final IndexReader reader;
+    final LuceneIndex[] leaves;
+    final int[] docBases;
+    final String loc;
+    final String prefix;
+    final boolean blocks;
+    final boolean impacts;
+    /** the Lucene fields that are Terrier fields, if any */
+    final String[] fields;
+    /** termids shared by all segments, if they are DirectLuceneIndex, otherwise null */
+    final TermOrdinals termOrdinals;
+
+    final Lexicon<String>[] leafLexicons;
+    final PostingIndex<?>[] leafInverted;
+    final DocumentIndex[] leafDocumentIndices;
+    final MetaIndex[] leafMetaIndices;
+
+    final Lexicon<String> lexicon;
+    final PostingIndex<?> invertedIndex;
+    final DocumentIndex documentIndex;
+    final PostingIndex<?> directIndex;
+    final MetaIndex metaIndex;
+
+    volatile CollectionStatistics collectionStatistics;
+
+    public CompositeLuceneIndex(IndexReader _reader, String _loc, boolean direct) throws IOException {
+        this(_reader, _loc, direct, null);
+    }
+
+    /** Creates an index over a reader reopened from that of a previous index. Segments that 
+     * the readers share (i.e. that are unchanged, including their deletions) reuse the 
+     * LuceneIndex of the previous index, and so its norms and cached structures. Segments of 
+     * a DirectLuceneIndex are not reused, as the shared termids change with the vocabulary. */
+    @SuppressWarnings("unchecked")
+    CompositeLuceneIndex(IndexReader _reader, String _loc, boolean direct, CompositeLuceneIndex previous) throws IOException {
+        this.reader = _reader;
+        this.loc = _loc;
+        this.prefix = direct ? LuceneIndexFactory.DIRECTPREFIX : LuceneIndexFactory.PREFIX;
+        List<LeafReaderContext> lrcs = reader.leaves();
+        termOrdinals = direct
+                ? new TermOrdinals(MultiTerms.getTerms(reader, LuceneIndex.DEFAULT_FIELD).iterator())
+                : null;
+        leaves = new LuceneIndex[lrcs.size()];
+        docBases = new int[leaves.length];
+        leafLexicons = new Lexicon[leaves.length];
+        leafInverted = new PostingIndex<?>[leaves.length];
+        leafDocumentIndices = new DocumentIndex[leaves.length];
+        leafMetaIndices = new MetaIndex[leaves.length];
+        for (int i = 0; i < leaves.length; i++) {
+            LeafReaderContext lrc = lrcs.get(i);
+            String leafLoc = loc + "#" + String.valueOf(i);
+            LuceneIndex reused = direct || previous == null ? null : previous.leafOf(lrc.reader());
+            leaves[i] = direct
+                ? new DirectLuceneIndex(lrc.reader(), leafLoc, termOrdinals)
+                : reused != null ? reused : new LuceneIndex(lrc.reader(), leafLoc);
+            docBases[i] = lrc.docBase;
+            leafLexicons[i] = leaves[i].getLexicon();
+            leafInverted[i] = leaves[i].getInvertedIndex();
+            leafDocumentIndices[i] = leaves[i].getDocumentIndex();
+            leafMetaIndices[i] = leaves[i].getMetaIndex();
+        }
+        blocks = leaves[0].blocks;
+        impacts = leaves[0].impacts;
+        fields = leaves[0].fields;
+        // shared by all callers, as they hold no per-call state
+        lexicon = newLexicon();
+        invertedIndex = newInvertedIndex();
+        documentIndex = newDocumentIndex();
+        directIndex = newDirectIndex();
+        metaIndex = newMetaIndex();
+    }
+
+    /** Returns the LuceneIndex of the specified segment reader, or null if it is not one of ours */
+    LuceneIndex leafOf(LeafReader lr) {
+        for (LuceneIndex leaf : leaves)
+            if (leaf.ir == lr)
+                return leaf;
+        return null;
+    }
+
+    /** Returns the segment containing the specified docid */
+    int leafOf(int docid) {
+        int i = Arrays.binarySearch(docBases, docid);
+        // with no exact match, binarySearch returns -(insertion point) - 1
+        return i >= 0 ? i : -i - 2;
+    }
+
+    @Override
+    public CollectionStatistics getCollectionStatistics() {
+        CollectionStatistics cs = collectionStatistics;
+        if (cs != null)
+            return cs;
+        synchronized (this) {
+            if (collectionStatistics != null)
+                return collectionStatistics;
+            long numTokens = 0;
+            long numPointers = 0;
+            final long[] fieldTokens = new long[fields.length];
+            // from the statistics of the segments, which may exclude deleted documents
+            for (LuceneIndex leaf : leaves) {
+                numTokens += leaf.getCollectionStatistics().getNumberOfTokens();
+                numPointers += leaf.getCollectionStatistics().getNumberOfPointers();
+                for (int f = 0; f < fields.length; f++)
+                    fieldTokens[f] += leaf.getCollectionStatistics().getFieldTokens()[f];
+            }
+            // term ids are the ordinals, so they include any term of only deleted documents
+            if (termOrdinals != null)
+                return collectionStatistics = new CollectionStatistics(reader.numDocs(), termOrdinals.size(),
+                        numTokens, numPointers, fieldTokens, fields.clone(), blocks);
+            return collectionStatistics = new CompositeCollectionStatistics(reader.numDocs(), numTokens,
+                    numPointers, fieldTokens, fields.clone(), blocks, this::countTerms);
+        }
+    }
+
+    /** Returns the number of distinct terms over all segments, by walking their merged vocabulary */
+    int countTerms() {
+        try {
+            if (leaves.length == 1)
+                return leaves[0].getCollectionStatistics().getNumberOfUniqueTerms();
+            boolean liveStatistics = false;
+            for (LuceneIndex leaf : leaves)
+                liveStatistics |= leaf.liveStatistics;
+            int numTerms = 0;
+            if (liveStatistics) {
+                // as the lexicon, count only the terms of live documents
+                final Iterator<Entry<String, LexiconEntry>> iter = lexicon.iterator();
+                while (iter.hasNext()) {
+                    iter.next();
+                    numTerms++;
+                }
+            } else if (fields.length > 0) {
+                final TermsEnum[] tes = new TermsEnum[fields.length];
+                for (int f = 0; f < fields.length; f++) {
+                    final Terms terms = MultiTerms.getTerms(reader, fields[f]);
+                    tes[f] = terms == null ? null : terms.iterator();
+                }
+                numTerms = LuceneIndex.countTerms(tes);
+            } else {
+                TermsEnum te = MultiTerms.getTerms(reader, LuceneIndex.DEFAULT_FIELD).iterator();
+                while (te.next() != null)
+                    numTerms++;
+            }
+            return numTerms;
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /** The statistics of a composite index, whose number of unique terms is only counted when
+     * first asked for, as that walks the vocabulary of every segment. Most weighting models do
+     * not use it, so a new snapshot of the index does not pay for it before its first query. */
+    static class CompositeCollectionStatistics extends CollectionStatistics {
+        private static final long serialVersionUID = 1L;
+        transient final IntSupplier counter;
+        volatile int numTerms = -1;
+
+        CompositeCollectionStatistics(int numDocs, long numTokens, long numPointers, long[] fieldTokens,
+                String[] fieldNames, boolean blocks, IntSupplier _counter) {
+            super(numDocs, 0, numTokens, numPointers, fieldTokens, fieldNames, blocks);
+            this.counter = _counter;
+        }
+
+        @Override
+        public int getNumberOfUniqueTerms() {
+            int n = numTerms;
+            // threads that race here count the same vocabulary
+            if (n == -1)
+                numTerms = n = counter.getAsInt();
+            return n;
+        }
+    }
+
+    static class CompositeLexiconEntry extends BasicLexiconEntry {
+        private static final long serialVersionUID = 1L;
+        /** the entry of each segment, or null where the term does not occur in a segment */
+        final LuceneLexiconEntry[] leafEntries;
+
+        CompositeLexiconEntry(LuceneLexiconEntry[] _leafEntries) {
+            this.leafEntries = _leafEntries;
+        }
+
+        /** the maximum over the segments, which load their impacts on first use */
+        @Override
+        public int getMaxFrequencyInDocuments() {
+            int maxtf = -1;
+            for (LuceneLexiconEntry le : leafEntries)
+                if (le != null && le.hasImpacts())
+                    maxtf = Math.max(maxtf, le.getMaxFrequencyInDocuments());
+            return maxtf == -1 ? super.getMaxFrequencyInDocuments() : maxtf;
+        }
+
+        /** Returns an upper bound on the score that the specified weighting model can give
+         * to any posting of this term, or Double.MAX_VALUE if impacts were not loaded. */
+        public double getMaxScore(WeightingModel wm) {
+            double max = 0;
+            for (LuceneLexiconEntry le : leafEntries)
+                if (le != null)
+                    max = Math.max(max, le.getMaxScore(wm));
+            return max;
+        }
+    }
+
+    /** with the statistics of each field summed over the segments */
+    static class FieldCompositeLexiconEntry extends CompositeLexiconEntry implements FieldEntryStatistics {
+        private static final long serialVersionUID = 1L;
+        final int[] fieldFrequencies;
+        final int[] fieldDocumentFrequencies;
+
+        FieldCompositeLexiconEntry(LuceneLexiconEntry[] _leafEntries, int numFields) {
+            super(_leafEntries);
+            fieldFrequencies = new int[numFields];
+            fieldDocumentFrequencies = new int[numFields];
+            for (LuceneLexiconEntry le : leafEntries) {
+                if (le == null)
+                    continue;
+                final FieldLuceneLexiconEntry fle = (FieldLuceneLexiconEntry) le;
+                for (int f = 0; f < numFields; f++) {
+                    fieldFrequencies[f] += fle.fieldFrequencies[f];
+                    fieldDocumentFrequencies[f] += fle.fieldDocumentFrequencies[f];
+                }
+            }
+        }
+
+        @Override
+        public int[] getFieldFrequencies() {
+            return fieldFrequencies;
+        }
+
+        public int[] getFieldDocumentFrequencies() {
+            return fieldDocumentFrequencies;
+        }
+    }
+
+    CompositeLexiconEntry makeEntry(String term, LuceneLexiconEntry[] leafEntries) {
+        int df = 0;
+        long tf = 0;
+        boolean found = false;
+        for (LuceneLexiconEntry le : leafEntries) {
+            if (le == null)
+                continue;
+            found = true;
+            df += le.getDocumentFrequency();
+            tf += le.getFrequency();
+        }
+        if (!found)
+            return null;
+        CompositeLexiconEntry ce = fields.length > 0
+            ? new FieldCompositeLexiconEntry(leafEntries, fields.length)
+            : new CompositeLexiconEntry(leafEntries);
+        ce.setStatistics(df, (int) tf);
+        if (termOrdinals != null)
+            ce.setTermId(termOrdinals.ordinal(new BytesRef(term)));
+        return ce;
+    }
+
+    static BytesRef termOf(Entry<String, LexiconEntry> e) {
+        return ((LuceneLexiconEntry) e.getValue()).t.bytes();
+    }
+
+    /** Merges the (sorted) lexicon iterators of the segments, skipping any term that only
+     * occurs in deleted documents */
+    class MergingLexiconIterator implements Iterator<Entry<String, LexiconEntry>> {
+
+        class Head {
+            final int leaf;
+            final Iterator<Entry<String, LexiconEntry>> iter;
+            Entry<String, LexiconEntry> current;
+
+            Head(int _leaf, Iterator<Entry<String, LexiconEntry>> _iter) {
+                leaf = _leaf;
+                iter = _iter;
+            }
+        }
+
+        final PriorityQueue<Head> queue = new PriorityQueue<>(Comparator.comparing((Head h) -> termOf(h.current)));
+        /** what next() will return, or null when exhausted */
+        Entry<String, LexiconEntry> nextPair;
+
+        MergingLexiconIterator(Iterator<Entry<String, LexiconEntry>>[] iters) {
+            for (int i = 0; i < iters.length; i++) {
+                Head h = new Head(i, iters[i]);
+                if (h.iter.hasNext()) {
+                    h.current = h.iter.next();
+                    queue.add(h);
+                }
+            }
+            advance();
+        }
+
+        /** merges the entries of the next term, until one has a live posting */
+        void advance() {
+            nextPair = null;
+            while (nextPair == null && !queue.isEmpty()) {
+                final String term = queue.peek().current.getKey();
+                final BytesRef termBytes = termOf(queue.peek().current);
+                final LuceneLexiconEntry[] leafEntries = new LuceneLexiconEntry[leaves.length];
+                while (!queue.isEmpty() && termOf(queue.peek().current).equals(termBytes)) {
+                    Head h = queue.poll();
+                    leafEntries[h.leaf] = (LuceneLexiconEntry) h.current.getValue();
+                    if (h.iter.hasNext()) {
+                        h.current = h.iter.next();
+                        queue.add(h);
+                    }
+                }
+                final CompositeLexiconEntry ce = makeEntry(term, leafEntries);
+                if (ce != null && ce.getDocumentFrequency() > 0)
+                    nextPair = Pair.of(term, ce);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextPair != null;
+        }
+
+        @Override
+        public Entry<String, LexiconEntry> next() {
+            if (nextPair == null)
+                throw new NoSuchElementException();
+            final Entry<String, LexiconEntry> rtr = nextPair;
+            advance();
+            return rtr;
+        }
+    }
+
+    class CompositeLexicon extends Lexicon<String> {
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public LexiconEntry getLexiconEntry(String term) {
+            final LuceneLexiconEntry[] leafEntries = new LuceneLexiconEntry[leaves.length];
+            for (int i = 0; i < leaves.length; i++)
+                leafEntries[i] = (LuceneLexiconEntry) leafLexicons[i].getLexiconEntry(term);
+            return makeEntry(term, leafEntries);
+        }
+
+        @Override
+        public Entry<String, LexiconEntry> getLexiconEntry(int termid) {
+            if (termOrdinals == null)
+                throw new UnsupportedOperationException();
+            String term = termOrdinals.term(termid);
+            return Pair.of(term, getLexiconEntry(term));
+        }
+
+        @Override
+        public Entry<String, LexiconEntry> getIthLexiconEntry(int index) {
+            return getLexiconEntry(index);
+        }
+
+        @Override
+        public int numberOfEntries() {
+            return getCollectionStatistics().getNumberOfUniqueTerms();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Iterator<Entry<String, LexiconEntry>> iterator() {
+            Iterator<Entry<String, LexiconEntry>>[] iters = new Iterator[leaves.length];
+            for (int i = 0; i < leaves.length; i++)
+                iters[i] = leafLexicons[i].iterator();
+            return new MergingLexiconIterator(iters);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Iterator<Entry<String, LexiconEntry>> getLexiconEntryRange(String from, String to) {
+            Iterator<Entry<String, LexiconEntry>>[] iters = new Iterator[leaves.length];
+            for (int i = 0; i < leaves.length; i++)
+                iters[i] = leafLexicons[i].getLexiconEntryRange(from, to);
+            return new MergingLexiconIterator(iters);
+        }
+    }
+
+    /** Concatenates the posting lists of a term in each segment */
+    class CompositeIterablePosting extends IterablePostingImpl implements NormPosting {
+        final LuceneLexiconEntry[] leafEntries;
+        // the current segment, and its postings, or null if the term does not occur in it
+        int leaf = -1;
+        IterablePosting cur;
+        // a segment whose postings were opened by advanceShallow() ahead of reaching it
+        int shallowLeaf = -1;
+        IterablePosting shallow;
+        int docid = -1;
+
+        CompositeIterablePosting(LuceneLexiconEntry[] _leafEntries) {
+            leafEntries = _leafEntries;
+        }
+
+        IterablePosting open(int l) throws IOException {
+            if (l == shallowLeaf)
+                return shallow;
+            if (leafEntries[l] == null)
+                return null;
+            return leafInverted[l].getPostings(leafEntries[l]);
+        }
+
+        /** moves to segment l, returning false if there are no more segments */
+        boolean moveToLeaf(int l) throws IOException {
+            if (cur != null && cur != shallow)
+                cur.close();
+            leaf = l;
+            cur = null;
+            if (leaf >= leaves.length)
+                return false;
+            cur = open(leaf);
+            return true;
+        }
+
+        @Override
+        public int next() throws IOException {
+            if (docid == EOL)
+                return EOL;
+            while (true) {
+                if (cur != null) {
+                    int id = cur.next();
+                    if (id != EOL)
+                        return docid = docBases[leaf] + id;
+                }
+                if (!moveToLeaf(leaf + 1))
+                    return docid = EOL;
+            }
+        }
+
+        @Override
+        public int next(int target) throws IOException {
+            if (target <= docid)
+                return docid;
+            int targetLeaf = leafOf(target);
+            if (targetLeaf > leaf)
+                moveToLeaf(targetLeaf);
+            if (cur != null) {
+                int id = cur.next(target - docBases[leaf]);
+                if (id != EOL)
+                    return docid = docBases[leaf] + id;
+            }
+            // nothing at or after target in this segment, so take the first posting of later segments
+            if (!moveToLeaf(leaf + 1))
+                return docid = EOL;
+            return next();
+        }
+
+        @Override
+        public boolean endOfPostings() {
+            return docid == EOL;
+        }
+
+        @Override
+        public int getId() {
+            return docid;
+        }
+
+        @Override
+        public int getFrequency() {
+            return cur.getFrequency();
+        }
+
+        @Override
+        public int getDocumentLength() {
+            return cur.getDocumentLength();
+        }
+
+        @Override
+        public int getNorm() {
+            return cur instanceof NormPosting ? ((NormPosting) cur).getNorm() : -1;
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            return new BasicPostingImpl(getId(), getFrequency());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cur != null)
+                cur.close();
+            if (shallow != null && shallow != cur)
+                shallow.close();
+        }
+    }
+
+    // the BlockMaxPosting methods of composite postings, whose segments' postings are BlockMaxPostings
+
+    int advanceShallow(CompositeIterablePosting p, int target) throws IOException {
+        int l = leafOf(target);
+        if (l != p.shallowLeaf) {
+            if (p.shallow != null && p.shallow != p.cur)
+                p.shallow.close();
+            p.shallow = l == p.leaf ? p.cur : p.open(l);
+            p.shallowLeaf = l;
+        }
+        final int leafEnd = docBases[l] + leaves[l].ir.maxDoc() - 1;
+        if (p.shallow == null)
+            return leafEnd;
+        int upTo = ((BlockMaxPosting) p.shallow).advanceShallow(target - docBases[l]);
+        return upTo == IterablePosting.EOL ? leafEnd : docBases[l] + upTo;
+    }
+
+    static int getBlockMaxFrequency(CompositeIterablePosting p) throws IOException {
+        return p.shallow == null ? 0 : ((BlockMaxPosting) p.shallow).getBlockMaxFrequency();
+    }
+
+    static double getBlockMaxScore(CompositeIterablePosting p, WeightingModel wm) throws IOException {
+        return p.shallow == null ? 0 : ((BlockMaxPosting) p.shallow).getBlockMaxScore(wm);
+    }
+
+    class BlockCompositeIterablePosting extends CompositeIterablePosting implements BlockPosting {
+
+        BlockCompositeIterablePosting(LuceneLexiconEntry[] _leafEntries) {
+            super(_leafEntries);
+        }
+
+        @Override
+        public int[] getPositions() {
+            return ((BlockPosting) cur).getPositions();
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            return new BlockPostingImpl(getId(), getFrequency(), getPositions().clone());
+        }
+    }
+
+    class FieldCompositeIterablePosting extends CompositeIterablePosting implements FieldPosting {
+
+        FieldCompositeIterablePosting(LuceneLexiconEntry[] _leafEntries) {
+            super(_leafEntries);
+        }
+
+        @Override
+        public int[] getFieldFrequencies() {
+            return ((FieldPosting) cur).getFieldFrequencies();
+        }
+
+        @Override
+        public int[] getFieldLengths() {
+            return ((FieldPosting) cur).getFieldLengths();
+        }
+
+        @Override
+        public void setFieldLengths(int[] newLengths) {
+            ((FieldPosting) cur).setFieldLengths(newLengths);
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            // the docid of the composite, rather than that of the segment
+            final FieldPostingImpl fp = new FieldPostingImpl(getId(), getFrequency(), fields.length);
+            System.arraycopy(getFieldFrequencies(), 0, fp.getFieldFrequencies(), 0, fields.length);
+            fp.setFieldLengths(getFieldLengths().clone());
+            return fp;
+        }
+    }
+
+    class ImpactsCompositeIterablePosting extends CompositeIterablePosting implements BlockMaxPosting {
+
+        ImpactsCompositeIterablePosting(LuceneLexiconEntry[] _leafEntries) {
+            super(_leafEntries);
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            return CompositeLuceneIndex.this.advanceShallow(this, target);
+        }
+
+        @Override
+        public int getBlockMaxFrequency() throws IOException {
+            return CompositeLuceneIndex.getBlockMaxFrequency(this);
+        }
+
+        @Override
+        public double getBlockMaxScore(WeightingModel wm) throws IOException {
+            return CompositeLuceneIndex.getBlockMaxScore(this, wm);
+        }
+    }
+
+    class ImpactsBlockCompositeIterablePosting extends BlockCompositeIterablePosting implements BlockMaxPosting {
+
+        ImpactsBlockCompositeIterablePosting(LuceneLexiconEntry[] _leafEntries) {
+            super(_leafEntries);
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            return CompositeLuceneIndex.this.advanceShallow(this, target);
+        }
+
+        @Override
+        public int getBlockMaxFrequency() throws IOException {
+            return CompositeLuceneIndex.getBlockMaxFrequency(this);
+        }
+
+        @Override
+        public double getBlockMaxScore(WeightingModel wm) throws IOException {
+            return CompositeLuceneIndex.getBlockMaxScore(this, wm);
+        }
+    }
+
+    @Override
+    public PostingIndex<?> getInvertedIndex() {
+        return invertedIndex;
+    }
+
+    PostingIndex<?> newInvertedIndex() {
+        return new PostingIndex<CompositeLexiconEntry>() {
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public IterablePosting getPostings(Pointer _lEntry) throws IOException {
+                LuceneLexiconEntry[] leafEntries = ((CompositeLexiconEntry) _lEntry).leafEntries;
+                if (fields.length > 0)
+                    return new FieldCompositeIterablePosting(leafEntries);
+                if (impacts)
+                    return blocks
+                        ? new ImpactsBlockCompositeIterablePosting(leafEntries)
+                        : new ImpactsCompositeIterablePosting(leafEntries);
+                return blocks
+                    ? new BlockCompositeIterablePosting(leafEntries)
+                    : new CompositeIterablePosting(leafEntries);
+            }
+        };
+    }
+
+    @Override
+    public Lexicon<String> getLexicon() {
+        return lexicon;
+    }
+
+    Lexicon<String> newLexicon() {
+        return new CompositeLexicon();
+    }
+
+    @Override
+    public DocumentIndex getDocumentIndex() {
+        return documentIndex;
+    }
+
+    class CompositeDocumentIndex implements DocumentIndex {
+
+        @Override
+        public int getNumberOfDocuments() {
+            return reader.maxDoc();
+        }
+
+        @Override
+        public int getDocumentLength(int docid) throws IOException {
+            int l = leafOf(docid);
+            return leafDocumentIndices[l].getDocumentLength(docid - docBases[l]);
+        }
+
+        @Override
+        public DocumentIndexEntry getDocumentEntry(int docid) throws IOException {
+            // record the docid of the composite, so that the direct index can identify the segment
+            int l = leafOf(docid);
+            DocumentIndexEntry die = leafDocumentIndices[l].getDocumentEntry(docid - docBases[l]);
+            return new LuceneDocumentIndexEntry(die.getDocumentLength(), (byte) 0, (long) docid, (byte) 0,
+                    die.getNumberOfEntries(), docid);
+        }
+    }
+
+    class FieldCompositeDocumentIndex extends CompositeDocumentIndex implements FieldDocumentIndex {
+
+        @Override
+        public int[] getFieldLengths(int docid) throws IOException {
+            int l = leafOf(docid);
+            return ((FieldDocumentIndex) leafDocumentIndices[l]).getFieldLengths(docid - docBases[l]);
+        }
+    }
+
+    DocumentIndex newDocumentIndex() {
+        return fields.length > 0 ? new FieldCompositeDocumentIndex() : new CompositeDocumentIndex();
+    }
+
+    @Override
+    public PostingIndex<?> getDirectIndex() {
+        return directIndex;
+    }
+
+    PostingIndex<?> newDirectIndex() {
+        if (termOrdinals == null)
+            return null;
+        return new PostingIndex<LuceneDocumentIndexEntry>() {
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public IterablePosting getPostings(Pointer pointer) throws IOException {
+                LuceneDocumentIndexEntry die = (LuceneDocumentIndexEntry) pointer;
+                int l = leafOf(die.docid);
+                int localDocid = die.docid - docBases[l];
+                return leaves[l].getDirectIndex().getPostings(new LuceneDocumentIndexEntry(die.getDocumentLength(),
+                        (byte) 0, (long) localDocid, (byte) 0, die.getNumberOfEntries(), localDocid));
+            }
+        };
+    }
+
+    interface LeafBatch {
+        void apply(int leaf, int[] localDocids, int[] positions) throws IOException;
+    }
+
+    /** Groups the docids by segment, such that each segment serves one batch. The batch of
+     * each segment receives the segment's docids, and their positions in docids. */
+    void forEachLeaf(int[] docids, LeafBatch batch) throws IOException {
+        final int[] leafOf = new int[docids.length];
+        final int[] counts = new int[leaves.length];
+        for (int i = 0; i < docids.length; i++) {
+            leafOf[i] = leafOf(docids[i]);
+            counts[leafOf[i]]++;
+        }
+        for (int l = 0; l < leaves.length; l++) {
+            if (counts[l] == 0)
+                continue;
+            final int[] localDocids = new int[counts[l]];
+            final int[] positions = new int[counts[l]];
+            int j = 0;
+            for (int i = 0; i < docids.length; i++) {
+                if (leafOf[i] == l) {
+                    localDocids[j] = docids[i] - docBases[l];
+                    positions[j++] = i;
+                }
+            }
+            batch.apply(l, localDocids, positions);
+        }
+    }
+
+    @Override
+    public MetaIndex getMetaIndex() {
+        return metaIndex;
+    }
+
+    MetaIndex newMetaIndex() {
+        return new BatchMetaIndex() {
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public String[] getKeys() {
+                return leafMetaIndices[0].getKeys();
+            }
+
+            @Override
+            public String[][] getItems(String[] keys, int[] docids) throws IOException {
+                final String[][] rtr = new String[docids.length][];
+                forEachLeaf(docids, (l, localDocids, positions) -> {
+                    final String[][] values = leafMetaIndices[l].getItems(keys, localDocids);
+                    for (int j = 0; j < values.length; j++)
+                        rtr[positions[j]] = values[j];
+                });
+                return rtr;
+            }
+
+            @Override
+            public String[] getItems(String[] keys, int docid) throws IOException {
+                int l = leafOf(docid);
+                return leafMetaIndices[l].getItems(keys, docid - docBases[l]);
+            }
+
+            @Override
+            public String[] getItems(String key, int[] docids) throws IOException {
+                final String[] rtr = new String[docids.length];
+                forEachLeaf(docids, (l, localDocids, positions) -> {
+                    final String[] values = leafMetaIndices[l].getItems(key, localDocids);
+                    for (int j = 0; j < values.length; j++)
+                        rtr[positions[j]] = values[j];
+                });
+                return rtr;
+            }
+
+            @Override
+            public String getItem(String key, int docid) throws IOException {
+                int l = leafOf(docid);
+                return leafMetaIndices[l].getItem(key, docid - docBases[l]);
+            }
+
+            @Override
+            public int getDocument(String key, String value) throws IOException {
+                for (int l = 0; l < leaves.length; l++) {
+                    int docid = leafMetaIndices[l].getDocument(key, value);
+                    if (docid != -1)
+                        return docBases[l] + docid;
+                }
+                return -1;
+            }
+
+            @Override
+            public int[] getDocuments(String key, String[] values) throws IOException {
+                final int[] rtr = new int[values.length];
+                Arrays.fill(rtr, -1);
+                for (int l = 0; l < leaves.length; l++) {
+                    final int[] docids = ((BatchMetaIndex) leafMetaIndices[l]).getDocuments(key, values);
+                    for (int i = 0; i < values.length; i++)
+                        if (rtr[i] == -1 && docids[i] != -1)
+                            rtr[i] = docBases[l] + docids[i];
+                }
+                return rtr;
+            }
+
+            @Override
+            public String[] getAllItems(int docid) throws IOException {
+                int l = leafOf(docid);
+                return leafMetaIndices[l].getAllItems(docid - docBases[l]);
+            }
+
+            @Override
+            public int size() {
+                return reader.maxDoc();
+            }
+        };
+    }
+
+    @Override
+    public Object getIndexStructure(String structureName) {
+        switch (structureName) {
+        case "lexicon":
+            return getLexicon();
+        case "document":
+            return getDocumentIndex();
+        case "direct":
+            return getDirectIndex();
+        case "inverted":
+            return getInvertedIndex();
+        case "meta":
+            return getMetaIndex();
+        default:
+            break;
+        }
+        return null;
+    }
+
+    @Override
+    public Object getIndexStructureInputStream(String structureName) {
+        switch (structureName) {
+        case "lexicon":
+            return lexicon.iterator();
+        case "document":
+            return IndexInputStreams.documents(documentIndex, reader.maxDoc());
+        case "direct":
+            return directIndex == null
+                ? null
+                : new IndexInputStreams.DocumentPostingStream(documentIndex, directIndex, reader.maxDoc());
+        case "inverted":
+            // each term's lexicon entry holds the TermState of each segment, so opening its
+            // postings needs no seek in the term dictionaries
+            return new IndexInputStreams.LexiconPostingStream(lexicon.iterator(), invertedIndex);
+        case "meta":
+            return IndexInputStreams.meta(metaIndex, reader.maxDoc());
+        default:
+            break;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasIndexStructureInputStream(String structureName) {
+        return hasIndexStructure(structureName);
+    }
+
+    @Override
+    public boolean hasIndexStructure(String structureName) {
+        switch (structureName) {
+            case "lexicon": return true;
+            case "inverted": return true;
+            case "meta": return true;
+            case "document": return true;
+            case "direct": return termOrdinals != null;
+            default: return false;
+        }
+    }
+
+    @Override
+    public IndexRef getIndexRef() {
+        return Index.makeDirectIndexRef(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the segments are closed with the reader
+        reader.close();
+    }
+
+    @Override
+    public String toString() {
+        return prefix + loc;
+    }
+}
@@ -3,137 +3,200 @@ package org.terrier.lucene;
 import java.io.IOException;
 import java.util.Map.Entry;
 
-import org.apache.commons.collections4.BidiMap;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
 import org.terrier.structures.Lexicon;
 import org.terrier.structures.LexiconEntry;
 import org.terrier.structures.Pointer;
 import org.terrier.structures.PostingIndex;
+import org.terrier.structures.SimpleBitIndexPointer;
 import org.terrier.structures.postings.ArrayOfBasicIterablePosting;
 import org.terrier.structures.postings.ArrayOfBlockIterablePosting;
 import org.terrier.structures.postings.IterablePosting;
+import org.terrier.utility.ApplicationSetup;
 
 import gnu.trove.TIntArrayList;
 
 public class DirectLuceneIndex extends LuceneIndex {
 
-    BidiMap<String, Integer> term2termid = new DualHashBidiMap<>();
-    BidiMap<Integer, String> termid2term;
+    /** termids are the ordinals of terms in the (sorted) terms dictionary */
+    final TermOrdinals termOrdinals;
+    /** the terms of each document, if read from a forward index rather than from term vectors */
+    final ForwardIndex forward;
+    /** the termid of each ordinal of the forward index, if termids are shared with other segments, otherwise null */
+    final int[] forwardTermids;
+    final PostingIndex<?> directIndex = new DirectPostingIndex();
 
     public DirectLuceneIndex(LeafReader _lr, String _loc) {
-        super(_lr, _loc);
-        if (super.getCollectionStatistics().getNumberOfDocuments() == 0) {
+        this(_lr, _loc, null);
+    }
+
+    /** Creates a direct index for one segment, using termids from the specified mapping, which 
+     * may be shared by all segments of an index. If null, a mapping for this segment is built.
+     * The terms of each document are read from the term vectors, or, if the segment has none 
+     * (or the lucene.direct.source property is "forward"), from a forward index built from 
+     * the postings. */
+    DirectLuceneIndex(LeafReader _lr, String _loc, TermOrdinals _termOrdinals) {
+        super(checkNoFields(_lr), _loc);
+        if (ir.maxDoc() == 0) {
             throw new UnsupportedOperationException("zero document indices not supported");
         }
+        final boolean hasVectors = ir.getFieldInfos().fieldInfo(DEFAULT_FIELD).hasVectors();
+        final String source = ApplicationSetup.getProperty("lucene.direct.source", "auto");
+        final boolean useVectors;
+        switch (source) {
+            case "auto": useVectors = hasVectors; break;
+            case "vectors": useVectors = true; break;
+            case "forward": useVectors = false; break;
+            default: throw new IllegalArgumentException("Unknown lucene.direct.source " + source);
+        }
+        // check that the lucene index is suitable
+        if (useVectors && ! hasVectors)
+            throw new IllegalArgumentException("Index has no term vectors (aka direct index)");
         try {
-            // check that the lucene index is suitable
-            if (ir.getTermVectors(0) == null) {
-                throw new IllegalArgumentException("Index has no term vectors (aka direct index)");
-            }
-
             // build a mapping from term <-> "termids"
-            Terms terms = ir.terms(DEFAULT_FIELD);
-            TermsEnum tes = terms.iterator();
-            int id = 0;
-            while (tes.next() != null) {
-                String term = tes.term().utf8ToString();
-                term2termid.put(term, id++);
-            }
-            termid2term = term2termid.inverseBidiMap();
+            termOrdinals = _termOrdinals != null ? _termOrdinals : new TermOrdinals(termsEnum());
+            forward = useVectors ? null : ForwardIndex.load(ir, DEFAULT_FIELD);
+            forwardTermids = forward != null && _termOrdinals != null ? termids(termsEnum(), _termOrdinals) : null;
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
     }
 
+    /** maps each ordinal of the terms of this segment to its termid in the shared mapping */
+    static int[] termids(TermsEnum te, TermOrdinals termOrdinals) throws IOException {
+        TIntArrayList termids = new TIntArrayList();
+        BytesRef scratch = new BytesRef();
+        int termid = -1;
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            // terms are sorted, so each termid is greater than the last
+            termid = termOrdinals.ordinal(term, termid + 1, scratch);
+            termids.add(termid);
+        }
+        return termids.toNativeArray();
+    }
+
+    /** rejects lucene.fields before the superclass loads any structures of the fields */
+    static LeafReader checkNoFields(LeafReader lr) {
+        if (fieldsProperty().length > 0)
+            throw new IllegalArgumentException("lucene.fields is not supported with a direct index");
+        return lr;
+    }
+
+    /** counts the terms of each document from the forward index, when there are no term vectors */
+    class ForwardDocumentIndex extends LuceneDocumentIndex {
+
+        @Override
+        public DocumentIndexEntry getDocumentEntry(final int docid) throws IOException {
+            if (forward == null)
+                return super.getDocumentEntry(docid);
+            return new LuceneDocumentIndexEntry(getDocumentLength(docid),
+                    new SimpleBitIndexPointer((byte) 0, (long) docid, (byte) 0, forward.numberOfTerms(docid)), docid);
+        }
+    }
+
+    @Override
+    DocumentIndex newDocumentIndex() {
+        return new ForwardDocumentIndex();
+    }
+
     class DirectLuceneLexicon extends LuceneLexicon {
 
         @Override
-        LuceneLexiconEntry entryFromTerm(Term t) {
-            LuceneLexiconEntry lle = super.entryFromTerm(t);
-            // term not found
-            if (lle == null)
-                return null;
-            lle.termId = term2termid.get(t.text());
-            return lle;
+        LuceneLexiconEntry fillEntry(TermsEnum te, LuceneLexiconEntry lie, Term t) throws IOException {
+            super.fillEntry(te, lie, t);
+            lie.setTermId(termOrdinals.ordinal(t.bytes()));
+            return lie;
         }
 
         @Override
         public Entry<String, LexiconEntry> getLexiconEntry(int termid) {
-            String term = termid2term.get(termid);
+            String term = termOrdinals.term(termid);
             return Pair.of(term, super.getLexiconEntry(term));
         }
 
     }
 
     @Override
-    public Lexicon<String> getLexicon() {
+    Lexicon<String> newLexicon() {
         return new DirectLuceneLexicon();
     }
 
     @Override
     public PostingIndex<?> getDirectIndex() {
-        return new PostingIndex<LuceneDocumentIndexEntry>() {
+        return directIndex;
+    }
 
-            @Override
-            public void close() throws IOException {
-            }
+    class DirectPostingIndex implements PostingIndex<LuceneDocumentIndexEntry> {
 
-            @Override
-            public IterablePosting getPostings(Pointer pointer) throws IOException {
-                int docid = ((LuceneDocumentIndexEntry) pointer).docid;
-
-                Terms t = ir.getTermVector(docid, DEFAULT_FIELD);
-                TermsEnum iterator = t.iterator();
-                TIntArrayList termids = new TIntArrayList();
-                TIntArrayList freqs = new TIntArrayList();
-                TIntArrayList positions = new TIntArrayList();
-                PostingsEnum p = null;
-                int _doclen = 0;
-                while (iterator.next() != null) {
-                    String term = iterator.term().utf8ToString();
-                    termids.add(term2termid.get(term));
-                    p = iterator.postings(p, PostingsEnum.ALL);
-                    p.nextDoc();
-                    final int f = p.freq();
-
-                    // should this be totalTermFreq()?
-                    // final int f = iterator.docFreq();
-                    freqs.add(f);
-                    if (blocks) {
-                        for (int pi = 0; pi < f; pi++)
-                            positions.add(p.nextPosition());
-                    }
-                    _doclen++;
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public IterablePosting getPostings(Pointer pointer) throws IOException {
+            int docid = ((LuceneDocumentIndexEntry) pointer).docid;
+            // the length of the document index, as in the inverted postings, not the sum of the frequencies
+            final int doclen = documentLength(docid);
+            if (forward != null)
+                return forward.getPostings(docid, forwardTermids, doclen);
+
+            Terms t = ir.getTermVector(docid, DEFAULT_FIELD);
+            TermsEnum iterator = t.iterator();
+            TIntArrayList termids = new TIntArrayList();
+            TIntArrayList freqs = new TIntArrayList();
+            TIntArrayList positions = new TIntArrayList();
+            PostingsEnum p = null;
+            BytesRef scratch = new BytesRef();
+            int termid = -1;
+            BytesRef term;
+            while ((term = iterator.next()) != null) {
+                // term vectors are sorted, so each termid is greater than the last
+                termid = termOrdinals.ordinal(term, termid + 1, scratch);
+                if (termid == -1)
+                    throw new IllegalStateException("Term " + term.utf8ToString() + " of document " + docid + " not found in lexicon");
+                termids.add(termid);
+                p = iterator.postings(p, PostingsEnum.ALL);
+                p.nextDoc();
+                final int f = p.freq();
+
+                // should this be totalTermFreq()?
+                // final int f = iterator.docFreq();
+                freqs.add(f);
+                if (blocks) {
+                    for (int pi = 0; pi < f; pi++)
+                        positions.add(p.nextPosition());
                 }
-                final int doclen = _doclen;
-                if (blocks)
-                    return new ArrayOfBlockIterablePosting(termids.toNativeArray(), freqs.toNativeArray(),
-                            freqs.toNativeArray(), positions.toNativeArray()){
-
-                                @Override
-                                public int getDocumentLength() {
-                                    return doclen;
-                                }
-                                
-                            };
-                return new ArrayOfBasicIterablePosting(termids.toNativeArray(), freqs.toNativeArray()) {
-
-                    @Override
-                    public int getDocumentLength() {
-                        return doclen;
-                    }
-                    
-                };
             }
-            
-        };
-    }   
+            if (blocks)
+                return new ArrayOfBlockIterablePosting(termids.toNativeArray(), freqs.toNativeArray(),
+                        freqs.toNativeArray(), positions.toNativeArray()){
+
+                            @Override
+                            public int getDocumentLength() {
+                                return doclen;
+                            }
+                            
+                        };
+            return new ArrayOfBasicIterablePosting(termids.toNativeArray(), freqs.toNativeArray()) {
+
+                @Override
+                public int getDocumentLength() {
+                    return doclen;
+                }
+                
+            };
+        }
+        
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,123 @@
+package org.terrier.lucene;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/** The docnos of one segment in sorted order, each followed by its docid, as a memory-mapped
+ * sidecar file, such that a docno can be resolved to its docid by binary search. Docnos are
+ * front-coded in blocks by FrontCoding, so a lookup binary searches the first docnos of the
+ * blocks, and then decodes one block (or more, if a docno is shared by several documents).
+ * Documents without a docno are left out. Only needed when the docno field is not indexed,
+ * as otherwise its postings provide the lookup. Built on first use.
+ * <p>
+ * Layout of the payload: the blocks and their offsets, then the number of docnos and the
+ * length of the blocks. */
+class DocnoOrder {
+
+    static final int VERSION = 2;
+    static final int BLOCK_SIZE = FrontCoding.BLOCK_SIZE;
+
+    final ByteBuffer buf;
+    final int numEntries;
+    final int offsetsStart;
+
+    DocnoOrder(ByteBuffer _buf) {
+        this.buf = _buf;
+        numEntries = buf.getInt(buf.limit() - 8);
+        offsetsStart = buf.getInt(buf.limit() - 4);
+    }
+
+    /** Returns the docid of a live document with the specified docno, or -1 if there is
+     * none. Thread-safe. */
+    int lookup(String docno, Bits liveDocs) {
+        if (docno == null || docno.isEmpty() || numEntries == 0)
+            return -1;
+        final BytesRef key = new BytesRef(docno);
+        final FrontCoding.Reader in = new FrontCoding.Reader(buf, offsetsStart);
+        // the last block whose first docno is before the one sought, as a docno shared by
+        // several documents may start in the block before that which it heads
+        int lo = 0;
+        int hi = (numEntries - 1) / BLOCK_SIZE;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            in.seekBlock(mid);
+            if (in.get().compareTo(key) < 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        in.seekBlock(lo);
+        for (int i = lo * BLOCK_SIZE; ; ) {
+            final int docid = in.readVInt();
+            final int cmp = in.get().compareTo(key);
+            if (cmp == 0 && (liveDocs == null || liveDocs.get(docid)))
+                return docid;
+            if (cmp > 0 || ++i == numEntries)
+                return -1;
+            if (i % BLOCK_SIZE == 0)
+                in.seekBlock(i / BLOCK_SIZE);
+            else
+                in.next();
+        }
+    }
+
+    static Path path(LeafReader lr, String field) {
+        return SidecarFile.path(lr, field + ".docnos.order");
+    }
+
+    static DocnoOrder load(LeafReader lr, LuceneMetaIndex meta) throws IOException {
+        Path p = path(lr, meta.docnoField);
+        ByteBuffer buf = SidecarFile.map(p, lr, VERSION);
+        if (buf == null) {
+            System.err.println("Building docno order in " + p);
+            SidecarFile.write(p, lr, VERSION, dos -> write(lr, meta, dos));
+            buf = SidecarFile.map(p, lr, VERSION);
+        }
+        return new DocnoOrder(buf);
+    }
+
+    static void write(LeafReader lr, LuceneMetaIndex meta, DataOutputStream dos) throws IOException {
+        final int[] docids = new int[lr.maxDoc()];
+        for (int i = 0; i < docids.length; i++)
+            docids[i] = i;
+        final String[] values = meta.getDocnos(docids);
+        final BytesRef[] docnos = new BytesRef[values.length];
+        int n = 0;
+        for (int docid = 0; docid < values.length; docid++) {
+            if (values[docid] == null || values[docid].isEmpty())
+                continue;
+            docnos[docid] = new BytesRef(values[docid]);
+            docids[n++] = docid;
+        }
+        // sorted as bytes, the order in which lookups compare them
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return docnos[docids[i]].compareTo(docnos[docids[j]]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int tmp = docids[i];
+                docids[i] = docids[j];
+                docids[j] = tmp;
+            }
+        }.sort(0, n);
+
+        final FrontCoding.Writer writer = new FrontCoding.Writer(dos);
+        for (int i = 0; i < n; i++) {
+            writer.add(docnos[docids[i]]);
+            FrontCoding.writeVInt(dos, docids[i]);
+        }
+        final int offsetsStart = writer.finish();
+        dos.writeInt(n);
+        dos.writeInt(offsetsStart);
+    }
+}
@@ -0,0 +1,99 @@
+package org.terrier.lucene;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+
+/** The docnos of one segment, in docid order, as a memory-mapped sidecar file. Docnos are
+ * front-coded in blocks by FrontCoding, with null for a document without a docno, as from
+ * the stored fields. Docnos of consecutive documents usually share long prefixes
+ * (e.g. <tt>clueweb09-en0000-00-00001</tt>), so the table is small enough to stay in the
+ * page cache. The file is built on first use, from the stored fields, read sequentially
+ * by the merge instance of the stored fields reader.
+ * <p>
+ * Layout of the payload: the blocks and their offsets, then the number of documents and
+ * the length of the blocks. */
+class DocnoTable {
+
+    static final int VERSION = 2;
+    static final int BLOCK_SIZE = FrontCoding.BLOCK_SIZE;
+
+    final ByteBuffer buf;
+    final int numDocs;
+    final int offsetsStart;
+
+    DocnoTable(ByteBuffer _buf) {
+        this.buf = _buf;
+        numDocs = buf.getInt(buf.limit() - 8);
+        offsetsStart = buf.getInt(buf.limit() - 4);
+    }
+
+    /** A cursor over the table. Not thread-safe, but cheap to create. Docnos are fastest
+     * obtained in increasing docid order, as a cursor continues decoding within a block. */
+    class Reader {
+        final FrontCoding.Reader in = new FrontCoding.Reader(buf, offsetsStart);
+        int current = -1;
+
+        /** Returns the docno of the specified document, or null if it has none. The BytesRef
+         * is only valid until the next call */
+        BytesRef get(int docid) {
+            if (docid < 0 || docid >= numDocs)
+                throw new IndexOutOfBoundsException("docid " + docid + " out of range [0," + numDocs + ")");
+            final int block = docid / BLOCK_SIZE;
+            if (current == -1 || current > docid || current / BLOCK_SIZE != block) {
+                in.seekBlock(block);
+                current = block * BLOCK_SIZE;
+            }
+            while (current < docid) {
+                in.next();
+                current++;
+            }
+            return in.get();
+        }
+
+        String getString(int docid) {
+            final BytesRef rtr = get(docid);
+            return rtr == null ? null : rtr.utf8ToString();
+        }
+    }
+
+    static Path path(LeafReader lr, String field) {
+        return SidecarFile.path(lr, field + ".docnos");
+    }
+
+    static DocnoTable load(LeafReader lr, String field) throws IOException {
+        Path p = path(lr, field);
+        ByteBuffer buf = SidecarFile.map(p, lr, VERSION);
+        if (buf == null) {
+            System.err.println("Building docno table in " + p);
+            SidecarFile.write(p, lr, VERSION, dos -> write(lr, field, dos));
+            buf = SidecarFile.map(p, lr, VERSION);
+        }
+        return new DocnoTable(buf);
+    }
+
+    static void write(LeafReader lr, String field, DataOutputStream dos) throws IOException {
+        final int numDocs = lr.maxDoc();
+        final FrontCoding.Writer writer = new FrontCoding.Writer(dos);
+        // documents are visited in docid order, so each compressed block is decoded once
+        final StoredFieldsReader reader = LuceneMetaIndex.sequentialFieldsReader(lr);
+        final LuceneMetaIndex.FieldsVisitor visitor = new LuceneMetaIndex.FieldsVisitor(new String[] { field });
+        for (int docid = 0; docid < numDocs; docid++) {
+            visitor.reset();
+            if (reader != null)
+                reader.visitDocument(docid, visitor);
+            else
+                lr.document(docid, visitor);
+            final String value = visitor.values[0];
+            writer.add(value == null ? null : new BytesRef(value));
+        }
+        final int offsetsStart = writer.finish();
+        dos.writeInt(numDocs);
+        dos.writeInt(offsetsStart);
+    }
+}
@@ -0,0 +1,76 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/** Exact document lengths for one segment, as a memory-mapped sidecar file of one int per
+ * docid. Lucene only records lengths as one-byte norms, which are lossy for all but the
+ * shortest documents. The file is built on first use, from the term vectors if the field
+ * has them, otherwise from a single pass over the postings. Enabled by the
+ * <tt>lucene.doclens.exact</tt> property. */
+class ExactDocumentLengths {
+
+    static final int VERSION = 1;
+
+    final IntBuffer lengths;
+
+    ExactDocumentLengths(IntBuffer _lengths) {
+        this.lengths = _lengths;
+    }
+
+    int getLength(int docid) {
+        return lengths.get(docid);
+    }
+
+    static Path path(LeafReader lr, String field) {
+        return SidecarFile.path(lr, field + ".doclens");
+    }
+
+    static ExactDocumentLengths load(LeafReader lr, String field) throws IOException {
+        Path p = path(lr, field);
+        ByteBuffer buf = SidecarFile.map(p, lr, VERSION);
+        if (buf == null) {
+            System.err.println("Building exact document lengths in " + p);
+            final int[] lens = compute(lr, field);
+            SidecarFile.write(p, lr, VERSION, dos -> {
+                for (int l : lens)
+                    dos.writeInt(l);
+            });
+            buf = SidecarFile.map(p, lr, VERSION);
+        }
+        return new ExactDocumentLengths(buf.asIntBuffer());
+    }
+
+    static int[] compute(LeafReader lr, String field) throws IOException {
+        final int[] lens = new int[lr.maxDoc()];
+        FieldInfo fi = lr.getFieldInfos().fieldInfo(field);
+        if (fi == null)
+            return lens;
+        if (fi.hasVectors()) {
+            for (int docid = 0; docid < lens.length; docid++) {
+                Terms tv = lr.getTermVector(docid, field);
+                if (tv != null)
+                    lens[docid] = (int) tv.getSumTotalTermFreq();
+            }
+            return lens;
+        }
+        TermsEnum te = lr.terms(field).iterator();
+        PostingsEnum pe = null;
+        while (te.next() != null) {
+            pe = te.postings(pe, PostingsEnum.FREQS);
+            int docid;
+            while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                lens[docid] += pe.freq();
+        }
+        return lens;
+    }
+}
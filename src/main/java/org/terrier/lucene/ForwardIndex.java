@@ -0,0 +1,363 @@
+package org.terrier.lucene;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+import org.terrier.structures.postings.BasicPostingImpl;
+import org.terrier.structures.postings.IterablePostingImpl;
+import org.terrier.structures.postings.WritablePosting;
+import org.terrier.utility.ApplicationSetup;
+
+import gnu.trove.TLongArrayList;
+
+/** A forward index of one segment, i.e. the terms of each document, as a memory-mapped
+ * sidecar file. It serves as the direct index of segments without term vectors, and is
+ * built on first use by inverting the postings. The build partitions the docids into
+ * chunks of about CHUNK_POSTINGS postings. One pass over the terms dictionary appends each
+ * posting to a buffer of its chunk, which is spilled as a run to a temporary file when
+ * full. The chunks are then inverted from their runs by several threads, and written in
+ * docid order as they complete. Memory is bounded by the buffers, and the number of
+ * chunks in flight.
+ * <p>
+ * Each document is written as its number of terms, followed by a (termid gap, frequency)
+ * pair for each term, all as vbytes. Document lengths are not recorded, as postings take
+ * them from the document index, such that direct and inverted postings agree. Termids are the ordinals of the terms
+ * in the terms dictionary of the segment. Positions are not recorded. Layout of the
+ * payload: the documents, then one long offset per document, then the number of documents
+ * and the length of the documents (a long). The file is read through a Lucene IndexInput,
+ * as that of a large segment can exceed 2GB. */
+class ForwardIndex {
+
+    static final int VERSION = 3;
+    /** approximate number of postings inverted by each task of the build */
+    static final long CHUNK_POSTINGS = 1 << 22;
+    /** bytes of postings buffered for each chunk before they are spilled as a run */
+    static final int RUN_BYTES = 1 << 14;
+
+    /** the payload of the file, which is cloned by each reader */
+    final IndexInput data;
+    /** the offset of each document */
+    final RandomAccessInput offsets;
+    final int numDocs;
+
+    ForwardIndex(IndexInput _data) throws IOException {
+        this.data = _data;
+        final RandomAccessInput trailer = data.randomAccessSlice(0, data.length());
+        numDocs = trailer.readInt(data.length() - 12);
+        final long offsetsStart = trailer.readLong(data.length() - 8);
+        offsets = data.randomAccessSlice(offsetsStart, (long) numDocs * Long.BYTES);
+    }
+
+    long offset(int docid) throws IOException {
+        if (docid < 0 || docid >= numDocs)
+            throw new IndexOutOfBoundsException("docid " + docid + " out of range [0," + numDocs + ")");
+        return offsets.readLong((long) docid * Long.BYTES);
+    }
+
+    /** the number of distinct terms of the specified document */
+    int numberOfTerms(int docid) throws IOException {
+        final IndexInput in = data.clone();
+        in.seek(offset(docid));
+        return in.readVInt();
+    }
+
+    /** Returns the postings of the specified document, whose length is doclen. If termids is
+     * not null, it maps the termids of this segment to those returned, e.g. those of a
+     * multi-segment index. */
+    ForwardPosting getPostings(int docid, int[] termids, int doclen) throws IOException {
+        return new ForwardPosting(docid, termids, doclen);
+    }
+
+    /** Decodes the postings of one document directly from the mapped file */
+    class ForwardPosting extends IterablePostingImpl {
+        final IndexInput in = data.clone();
+        final int[] termids;
+        final int doclen;
+        int remaining;
+        int ordinal = -1;
+        int id = -1;
+        int f;
+
+        ForwardPosting(int docid, int[] _termids, int _doclen) throws IOException {
+            termids = _termids;
+            doclen = _doclen;
+            in.seek(offset(docid));
+            remaining = in.readVInt();
+        }
+
+        @Override
+        public int next() throws IOException {
+            if (remaining == 0)
+                return id = EOL;
+            remaining--;
+            ordinal += in.readVInt() + 1;
+            f = in.readVInt();
+            return id = termids == null ? ordinal : termids[ordinal];
+        }
+
+        @Override
+        public boolean endOfPostings() {
+            return id == EOL;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int getFrequency() {
+            return f;
+        }
+
+        @Override
+        public int getDocumentLength() {
+            return doclen;
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            return new BasicPostingImpl(id, f);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    static Path path(LeafReader lr, String field) {
+        return SidecarFile.path(lr, field + ".forward");
+    }
+
+    static ForwardIndex load(LeafReader lr, String field) throws IOException {
+        Path p = path(lr, field);
+        IndexInput data = SidecarFile.open(p, lr, VERSION);
+        if (data == null) {
+            final int threads = Integer.parseInt(ApplicationSetup.getProperty("lucene.forward.threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            System.err.println("Building forward index in " + p + " using " + threads + " threads");
+            final long start = System.currentTimeMillis();
+            SidecarFile.write(p, lr, VERSION, dos -> write(lr, field, threads, p.getParent(), dos));
+            System.err.println("Built forward index in " + (System.currentTimeMillis() - start) / 1000 + "s");
+            data = SidecarFile.open(p, lr, VERSION);
+        }
+        return new ForwardIndex(data);
+    }
+
+    /** The postings of each chunk of documents, as runs spilled to a temporary file by one
+     * pass over the postings. Each run is a sequence of (termid gap, docid within the chunk,
+     * frequency) vbytes, and follows the previous run of its chunk in termid order. */
+    static class Runs {
+        /** the position and length of each run of each chunk */
+        final TLongArrayList[] runs;
+
+        Runs(int chunks) {
+            runs = new TLongArrayList[chunks];
+            for (int c = 0; c < chunks; c++)
+                runs[c] = new TLongArrayList();
+        }
+
+        /** appends the buffered postings of a chunk to the file as a run, and returns the new end of the file */
+        long spill(int chunk, ByteArrayOutputStream buffer, OutputStream out, long position) throws IOException {
+            runs[chunk].add(position);
+            runs[chunk].add(buffer.size());
+            buffer.writeTo(out);
+            position += buffer.size();
+            buffer.reset();
+            return position;
+        }
+
+        /** reads all runs of a chunk */
+        byte[] read(FileChannel fc, int chunk) throws IOException {
+            long length = 0;
+            for (int k = 1; k < runs[chunk].size(); k += 2)
+                length += runs[chunk].get(k);
+            final ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(length));
+            for (int k = 0; k < runs[chunk].size(); k += 2) {
+                long position = runs[chunk].get(k);
+                final int end = bytes.position() + (int) runs[chunk].get(k + 1);
+                bytes.limit(end);
+                while (bytes.hasRemaining()) {
+                    final int read = fc.read(bytes, position);
+                    if (read < 0)
+                        throw new IOException("Unexpected end of spilled postings");
+                    position += read;
+                }
+            }
+            return bytes.array();
+        }
+    }
+
+    /** one range of documents, encoded */
+    static class Chunk {
+        final int from;
+        final int[] offsets;
+        final ByteArrayOutputStream data;
+
+        Chunk(int _from, int[] _offsets, ByteArrayOutputStream _data) {
+            from = _from;
+            offsets = _offsets;
+            data = _data;
+        }
+    }
+
+    /** Writes the payload. The postings are read in one pass, and spilled as runs to a
+     * temporary file in tmpDir, from which the chunks are then inverted in parallel. */
+    static void write(LeafReader lr, String field, int threads, Path tmpDir, DataOutputStream dos) throws IOException {
+        final int numDocs = lr.maxDoc();
+        final long postings = lr.getSumDocFreq(field);
+        final long chunks = Math.max(1, Math.min(numDocs, Math.max(threads, (postings + CHUNK_POSTINGS - 1) / CHUNK_POSTINGS)));
+        final int chunkSize = (int) Math.max(1, (numDocs + chunks - 1) / chunks);
+        // DataOutputStream.size() stops at 2GB, so positions are counted here
+        final PackedLongValues.Builder offsets = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+        long position = 0;
+        final Path spill = Files.createTempFile(tmpDir, "forward", ".runs");
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final Runs runs = spill(lr, field, chunkSize, spill);
+            try (FileChannel fc = FileChannel.open(spill, StandardOpenOption.READ)) {
+                final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+                int from = 0;
+                while (from < numDocs || ! pending.isEmpty()) {
+                    // at most one chunk per thread is held in memory, besides the one being written
+                    while (from < numDocs && pending.size() < threads) {
+                        final int chunkFrom = from;
+                        final int chunkTo = Math.min(numDocs, from + chunkSize);
+                        pending.add(pool.submit(() -> invert(runs.read(fc, chunkFrom / chunkSize), chunkFrom, chunkTo)));
+                        from = chunkTo;
+                    }
+                    // chunks complete in docid order, so offsets are added in docid order
+                    final Chunk chunk = pending.poll().get();
+                    for (int i = 0; i < chunk.offsets.length; i++)
+                        offsets.add(position + chunk.offsets[i]);
+                    chunk.data.writeTo(dos);
+                    position += chunk.data.size();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            throw new IOException(ee.getCause());
+        } finally {
+            pool.shutdownNow();
+            Files.deleteIfExists(spill);
+        }
+        final PackedLongValues.Iterator iter = offsets.build().iterator();
+        while (iter.hasNext())
+            dos.writeLong(iter.next());
+        dos.writeInt(numDocs);
+        dos.writeLong(position);
+    }
+
+    /** Reads all postings in one pass over the terms dictionary, appending each to a buffer
+     * for the chunk of its document, which is spilled as a run when full. Memory is bounded
+     * by RUN_BYTES per chunk. */
+    static Runs spill(LeafReader lr, String field, int chunkSize, Path spill) throws IOException {
+        final int chunks = (lr.maxDoc() + chunkSize - 1) / chunkSize;
+        final Runs runs = new Runs(chunks);
+        final ByteArrayOutputStream[] buffers = new ByteArrayOutputStream[chunks];
+        final DataOutput[] outs = new DataOutput[chunks];
+        for (int c = 0; c < chunks; c++) {
+            buffers[c] = new ByteArrayOutputStream();
+            outs[c] = new OutputStreamDataOutput(buffers[c]);
+        }
+        final int[] lastTermids = new int[chunks];
+        long position = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(spill), 1 << 16)) {
+            final TermsEnum te = lr.terms(field).iterator();
+            PostingsEnum pe = null;
+            int termid = 0;
+            while (te.next() != null) {
+                pe = te.postings(pe, PostingsEnum.FREQS);
+                int docid;
+                while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    final int c = docid / chunkSize;
+                    outs[c].writeVInt(termid - lastTermids[c]);
+                    outs[c].writeVInt(docid - c * chunkSize);
+                    outs[c].writeVInt(pe.freq());
+                    lastTermids[c] = termid;
+                    if (buffers[c].size() >= RUN_BYTES)
+                        position = runs.spill(c, buffers[c], out, position);
+                }
+                termid++;
+            }
+            for (int c = 0; c < chunks; c++)
+                if (buffers[c].size() > 0)
+                    position = runs.spill(c, buffers[c], out, position);
+        }
+        return runs;
+    }
+
+    /** Inverts the spilled postings of the documents from..to (exclusive) in two passes: the
+     * first counts the terms of each document, and the second fills them in. Postings were
+     * spilled in termid order, so each document's termids are sorted. */
+    static Chunk invert(byte[] postings, int from, int to) throws IOException {
+        final int n = to - from;
+        final int[] starts = new int[n + 1];
+        final ByteArrayDataInput in = new ByteArrayDataInput(postings);
+        while (! in.eof()) {
+            in.readVInt();
+            starts[in.readVInt() + 1]++;
+            in.readVInt();
+        }
+        for (int i = 0; i < n; i++)
+            starts[i + 1] += starts[i];
+
+        final int[] termids = new int[starts[n]];
+        final int[] freqs = new int[starts[n]];
+        final int[] fill = new int[n];
+        System.arraycopy(starts, 0, fill, 0, n);
+        in.reset(postings);
+        int termid = 0;
+        while (! in.eof()) {
+            termid += in.readVInt();
+            final int i = fill[in.readVInt()]++;
+            termids[i] = termid;
+            freqs[i] = in.readVInt();
+        }
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(2 * termids.length + 2 * n);
+        // written straight through, so data.size() is the position
+        final DataOutput out = new OutputStreamDataOutput(data);
+        final int[] offsets = new int[n];
+        for (int d = 0; d < n; d++) {
+            offsets[d] = data.size();
+            out.writeVInt(starts[d + 1] - starts[d]);
+            int previous = -1;
+            for (int i = starts[d]; i < starts[d + 1]; i++) {
+                out.writeVInt(termids[i] - previous - 1);
+                out.writeVInt(freqs[i]);
+                previous = termids[i];
+            }
+        }
+        return new Chunk(from, offsets, data);
+    }
+}
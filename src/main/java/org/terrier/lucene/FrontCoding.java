@@ -0,0 +1,139 @@
+package org.terrier.lucene;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+import gnu.trove.TIntArrayList;
+
+/** Front coding of byte strings in blocks, as in the payloads of our sidecar files. In each
+ * block of BLOCK_SIZE values, the first is written in full, and each following value as the
+ * length of the prefix it shares with its predecessor, and its remaining suffix. Lengths of
+ * suffixes are written plus one, such that 0 marks a null value. Callers may write data of
+ * their own after each value. The blocks are followed by one int offset per block. Lengths
+ * are vbytes, as Lucene's VInts. */
+class FrontCoding {
+
+    static final int BLOCK_SIZE = 16;
+
+    /** Writes values, and then the offsets of their blocks */
+    static class Writer {
+        final DataOutputStream dos;
+        final int start;
+        final TIntArrayList offsets = new TIntArrayList();
+        final BytesRefBuilder previous = new BytesRefBuilder();
+        int count = 0;
+
+        Writer(DataOutputStream _dos) {
+            this.dos = _dos;
+            start = dos.size();
+        }
+
+        /** writes the next value, which may be null */
+        void add(BytesRef value) throws IOException {
+            if (count++ % BLOCK_SIZE == 0) {
+                offsets.add(dos.size() - start);
+                writeVInt(dos, value == null ? 0 : value.length + 1);
+                if (value != null)
+                    dos.write(value.bytes, value.offset, value.length);
+            } else if (value == null) {
+                writeVInt(dos, 0);
+                writeVInt(dos, 0);
+            } else {
+                final BytesRef prev = previous.get();
+                int shared = 0;
+                final int max = Math.min(prev.length, value.length);
+                while (shared < max && prev.bytes[prev.offset + shared] == value.bytes[value.offset + shared])
+                    shared++;
+                writeVInt(dos, shared);
+                writeVInt(dos, value.length - shared + 1);
+                dos.write(value.bytes, value.offset + shared, value.length - shared);
+            }
+            // no prefix is shared with a null value
+            if (value == null)
+                previous.clear();
+            else
+                previous.copyBytes(value);
+        }
+
+        /** writes the offsets of the blocks, and returns where they start, relative to the
+         * first block */
+        int finish() throws IOException {
+            final int offsetsStart = dos.size() - start;
+            for (int i = 0; i < offsets.size(); i++)
+                dos.writeInt(offsets.get(i));
+            return offsetsStart;
+        }
+    }
+
+    /** A cursor over the values of a buffer, whose block offsets start at offsetsStart. Not
+     * thread-safe, but cheap to create. */
+    static class Reader {
+        final ByteBuffer buf;
+        final ByteBuffer in;
+        final int offsetsStart;
+        final BytesRefBuilder value = new BytesRefBuilder();
+        boolean missing;
+
+        Reader(ByteBuffer _buf, int _offsetsStart) {
+            this.buf = _buf;
+            this.in = buf.duplicate();
+            this.offsetsStart = _offsetsStart;
+        }
+
+        /** moves to the first value of a block */
+        void seekBlock(int block) {
+            in.position(buf.getInt(offsetsStart + block * 4));
+            read(0, readVInt());
+        }
+
+        /** moves to the next value of the current block, after any data of the caller */
+        void next() {
+            final int shared = readVInt();
+            read(shared, readVInt());
+        }
+
+        void read(int shared, int suffixPlusOne) {
+            missing = suffixPlusOne == 0;
+            if (missing) {
+                value.setLength(0);
+                return;
+            }
+            final int suffix = suffixPlusOne - 1;
+            value.grow(shared + suffix);
+            in.get(value.bytes(), shared, suffix);
+            value.setLength(shared + suffix);
+        }
+
+        /** Returns the current value, or null. The BytesRef is only valid until the cursor moves */
+        BytesRef get() {
+            return missing ? null : value.get();
+        }
+
+        /** reads data of the caller after the current value */
+        int readVInt() {
+            return FrontCoding.readVInt(in);
+        }
+    }
+
+    static void writeVInt(DataOutputStream dos, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            dos.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        dos.writeByte(i);
+    }
+
+    static int readVInt(ByteBuffer in) {
+        byte b = in.get();
+        int i = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in.get();
+            i |= (b & 0x7F) << shift;
+        }
+        return i;
+    }
+}
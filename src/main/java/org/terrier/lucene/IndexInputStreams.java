@@ -0,0 +1,231 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.Pointer;
+import org.terrier.structures.PostingIndex;
+import org.terrier.structures.PostingIndexInputStream;
+import org.terrier.structures.postings.IterablePosting;
+
+/** Sequential readers of whole structures, as returned by getIndexStructureInputStream(), for
+ * the Terrier tools that make one pass over an index (e.g. inverting it, or dumping it).
+ * Structures are read in the order of their ids, and each posting list returned by a
+ * PostingIndexInputStream is only valid until the next is requested. */
+class IndexInputStreams {
+
+    /** number of documents whose metadata is fetched in each batch */
+    static final int META_BATCH_SIZE = 1024;
+
+    /** Base class of the posting streams, which implement getNextPostings() */
+    static abstract class PostingStream implements PostingIndexInputStream {
+
+        /** number of entries without postings that preceded the current one */
+        int entriesSkipped = 0;
+
+        @Override
+        public IterablePosting next() {
+            try {
+                IterablePosting ip = getNextPostings();
+                if (ip == null)
+                    throw new NoSuchElementException();
+                return ip;
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        public int getEntriesSkipped() {
+            return entriesSkipped;
+        }
+
+        @Override
+        public void print() {
+            try {
+                IterablePosting ip;
+                while ((ip = getNextPostings()) != null) {
+                    StringBuilder sb = new StringBuilder();
+                    while (ip.next() != IterablePosting.EOL)
+                        sb.append(ip.toString()).append(' ');
+                    System.out.println(sb.toString());
+                }
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /** Reads the posting list of each term of a lexicon, in term order */
+    static class LexiconPostingStream extends PostingStream {
+        final Iterator<Entry<String, LexiconEntry>> terms;
+        final PostingIndex<?> postings;
+        LexiconEntry current;
+
+        LexiconPostingStream(Iterator<Entry<String, LexiconEntry>> _terms, PostingIndex<?> _postings) {
+            terms = _terms;
+            postings = _postings;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return terms.hasNext();
+        }
+
+        @Override
+        public IterablePosting getNextPostings() throws IOException {
+            if (! terms.hasNext())
+                return null;
+            current = terms.next().getValue();
+            return postings.getPostings(current);
+        }
+
+        @Override
+        public int getNumberOfCurrentPostings() {
+            return current.getDocumentFrequency();
+        }
+
+        @Override
+        public Pointer getCurrentPointer() {
+            return current;
+        }
+    }
+
+    /** Reads the direct posting list of each document, in docid order. Documents without
+     * postings (e.g. empty or deleted documents) are skipped, as counted by getEntriesSkipped(). */
+    static class DocumentPostingStream extends PostingStream {
+        final DocumentIndex documents;
+        final PostingIndex<?> postings;
+        final int numDocs;
+        /** docid of the last document looked at */
+        int docid = -1;
+        DocumentIndexEntry current;
+        /** the next document with postings, or null if there is none, once looked ahead */
+        DocumentIndexEntry next;
+        boolean lookedAhead = false;
+        /** number of documents without postings that precede next */
+        int skipped;
+
+        DocumentPostingStream(DocumentIndex _documents, PostingIndex<?> _postings, int _numDocs) {
+            documents = _documents;
+            postings = _postings;
+            numDocs = _numDocs;
+        }
+
+        /** finds the next document with postings, such that hasNext() is false if only
+         * empty or deleted documents remain */
+        void lookAhead() throws IOException {
+            if (lookedAhead)
+                return;
+            next = null;
+            skipped = 0;
+            while (++docid < numDocs) {
+                final DocumentIndexEntry die = documents.getDocumentEntry(docid);
+                if (die.getNumberOfEntries() > 0) {
+                    next = die;
+                    break;
+                }
+                skipped++;
+            }
+            lookedAhead = true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                lookAhead();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            return next != null;
+        }
+
+        @Override
+        public IterablePosting getNextPostings() throws IOException {
+            lookAhead();
+            lookedAhead = false;
+            entriesSkipped = skipped;
+            current = next;
+            return current == null ? null : postings.getPostings(current);
+        }
+
+        @Override
+        public int getNumberOfCurrentPostings() {
+            return current.getNumberOfEntries();
+        }
+
+        @Override
+        public Pointer getCurrentPointer() {
+            return current;
+        }
+    }
+
+    /** Iterates over the entries of the first numDocs documents of a DocumentIndex */
+    static Iterator<DocumentIndexEntry> documents(DocumentIndex documents, int numDocs) {
+        return new Iterator<DocumentIndexEntry>() {
+            int docid = 0;
+
+            @Override
+            public boolean hasNext() {
+                return docid < numDocs;
+            }
+
+            @Override
+            public DocumentIndexEntry next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    return documents.getDocumentEntry(docid++);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        };
+    }
+
+    /** Iterates over the values of all keys of the first numDocs documents of a MetaIndex.
+     * The values are fetched in batches of consecutive docids, which the meta indices of
+     * Lucene read in one sequential pass. */
+    static Iterator<String[]> meta(MetaIndex meta, int numDocs) {
+        final String[] keys = meta.getKeys();
+        return new Iterator<String[]>() {
+            int docid = 0;
+            String[][] batch = new String[0][];
+            int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return docid < numDocs;
+            }
+
+            @Override
+            public String[] next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                if (offset == batch.length) {
+                    final int[] docids = new int[Math.min(META_BATCH_SIZE, numDocs - docid)];
+                    for (int i = 0; i < docids.length; i++)
+                        docids[i] = docid + i;
+                    try {
+                        batch = meta.getItems(keys, docids);
+                    } catch (IOException ioe) {
+                        throw new RuntimeException(ioe);
+                    }
+                    offset = 0;
+                }
+                docid++;
+                return batch[offset++];
+            }
+        };
+    }
+}
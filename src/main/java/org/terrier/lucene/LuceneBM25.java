@@ -0,0 +1,73 @@
+package org.terrier.lucene;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.matching.models.WeightingModelLibrary;
+import org.terrier.structures.postings.Posting;
+
+/** BM25, as Terrier's BM25, but which scores the postings of a Lucene index by their norm.
+ * As in Lucene's BM25Similarity, the length normalisation of each of the 256 norms is computed
+ * once per query term in prepare(), so scoring a posting needs no decoding of its norm nor
+ * division by the average document length. Postings that are not NormPostings (e.g. with
+ * exact document lengths) are scored from their document length. Use by setting
+ * <tt>wmodel</tt> to <tt>org.terrier.lucene.LuceneBM25</tt>. */
+public class LuceneBM25 extends WeightingModel {
+
+    private static final long serialVersionUID = 1L;
+
+    final double k_1 = 1.2d;
+    final double k_3 = 8d;
+    double b = 0.75d;
+    /** the denominator of the length normalisation for the document length of each norm */
+    double[] normCache;
+    /** the factors of the score of this term that do not depend on the posting */
+    double weight;
+
+    @Override
+    public String getInfo() {
+        return "LuceneBM25b" + b;
+    }
+
+    @Override
+    public void prepare() {
+        super.prepare();
+        normCache = new double[256];
+        for (int norm = 0; norm < normCache.length; norm++)
+            normCache[norm] = k_1 * ((1 - b) + b * NormPosting.length(norm) / averageDocumentLength);
+        weight = idf() * (k_1 + 1d) * keyFrequencyNormalisation();
+    }
+
+    double idf() {
+        return WeightingModelLibrary.log((numberOfDocuments - documentFrequency + 0.5d) / (documentFrequency + 0.5d));
+    }
+
+    double keyFrequencyNormalisation() {
+        return (k_3 + 1d) * keyFrequency / (k_3 + keyFrequency);
+    }
+
+    @Override
+    public double score(Posting p) {
+        if (normCache != null && p instanceof NormPosting) {
+            final int norm = ((NormPosting) p).getNorm();
+            if (norm >= 0) {
+                final double tf = p.getFrequency();
+                return weight * tf / (normCache[norm] + tf);
+            }
+        }
+        return score(p.getFrequency(), p.getDocumentLength());
+    }
+
+    @Override
+    public double score(double tf, double docLength) {
+        final double K = k_1 * ((1 - b) + b * docLength / averageDocumentLength);
+        return idf() * ((k_1 + 1d) * tf / (K + tf)) * keyFrequencyNormalisation();
+    }
+
+    @Override
+    public void setParameter(double _b) {
+        b = _b;
+    }
+
+    public double getParameter() {
+        return b;
+    }
+}
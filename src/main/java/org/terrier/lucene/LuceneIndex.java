@@ -1,21 +1,30 @@
 package org.terrier.lucene;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
+import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.MultiTerms;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CloseableThreadLocal;
 import org.apache.lucene.util.SmallFloat;
+import org.terrier.matching.models.WeightingModel;
 import org.terrier.querying.IndexRef;
 import org.terrier.structures.BasicDocumentIndexEntry;
 import org.terrier.structures.BasicLexiconEntry;
@@ -23,6 +32,8 @@ import org.terrier.structures.BitIndexPointer;
 import org.terrier.structures.CollectionStatistics;
 import org.terrier.structures.DocumentIndex;
 import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.FieldDocumentIndex;
+import org.terrier.structures.FieldEntryStatistics;
 import org.terrier.structures.Index;
 import org.terrier.structures.Lexicon;
 import org.terrier.structures.LexiconEntry;
@@ -32,30 +43,96 @@ import org.terrier.structures.PostingIndex;
 import org.terrier.structures.SimpleBitIndexPointer;
 import org.terrier.structures.postings.BasicPostingImpl;
 import org.terrier.structures.postings.BlockPosting;
+import org.terrier.structures.postings.BlockPostingImpl;
+import org.terrier.structures.postings.FieldPosting;
+import org.terrier.structures.postings.FieldPostingImpl;
 import org.terrier.structures.postings.IterablePosting;
 import org.terrier.structures.postings.IterablePostingImpl;
 import org.terrier.structures.postings.WritablePosting;
+import org.terrier.utility.ApplicationSetup;
 
+import gnu.trove.TIntArrayList;
+
+/** An index over one segment of a Lucene index. Instances are safe for concurrent use by
+ * many query threads: the lexicon, posting indices, document index and meta index are made
+ * when the index is loaded and hold no per-call state. Posting lists and lexicon iterators
+ * belong to the thread that obtained them. TermsEnums used for lookups are kept per thread,
+ * and sidecar structures built on first use are published without locking once built. */
 public class LuceneIndex extends Index {
 
     static final boolean DOCLEN_FROM_TERM_VECTORS = false;
     static final String DEFAULT_FIELD = "contents";
+    static final String DOCNO_FIELD = "id";
 
     class LuceneLexicon extends Lexicon<String> {
         @Override
         public void close() throws IOException {
         }
 
+        /** Streams lexicon entries from a live TermsEnum, in term order, up to and including an 
+         * optional last term. If reuse is set, next() returns the same entry objects each time,
+         * which the caller must not retain between calls. */
+        class TermsEnumIterator implements Iterator<Entry<String, LexiconEntry>> {
+            final TermsEnum te;
+            final BytesRef last;
+            final boolean reuse;
+            final LuceneLexiconEntry reusedEntry = new LuceneLexiconEntry();
+            final MutablePair<String, LexiconEntry> reusedPair = new MutablePair<>();
+            // the term that next() will return, or null when exhausted
+            BytesRef current;
+
+            TermsEnumIterator(TermsEnum _te, BytesRef _current, BytesRef _last, boolean _reuse) throws IOException {
+                te = _te;
+                current = _current;
+                last = _last;
+                reuse = _reuse;
+                skipDeleted();
+            }
+
+            /** moves past terms that only occur in deleted documents, whose df would be 0 */
+            void skipDeleted() throws IOException {
+                while (current != null && liveStatistics && ! hasLivePosting(te))
+                    current = te.next();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return current != null && (last == null || current.compareTo(last) <= 0);
+            }
+
+            @Override
+            public Entry<String, LexiconEntry> next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    Entry<String, LexiconEntry> rtr;
+                    if (reuse) {
+                        fillEntry(te, reusedEntry, new Term(DEFAULT_FIELD, BytesRef.deepCopyOf(current)));
+                        reusedPair.setLeft(reusedEntry.t.text());
+                        reusedPair.setRight(reusedEntry);
+                        rtr = reusedPair;
+                    } else {
+                        rtr = makePair(te);
+                    }
+                    current = te.next();
+                    skipDeleted();
+                    return rtr;
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        }
+
         @Override
         public Iterator<Entry<String, LexiconEntry>> iterator() {
-            // TODO: this implementation doesnt stream, it loads into memory
+            return iterator(false);
+        }
+
+        /** Iterates over all terms. If reuse is set, the returned entries are reused between calls to next(). */
+        public Iterator<Entry<String, LexiconEntry>> iterator(boolean reuse) {
             try {
-                TermsEnum te = ir.terms(DEFAULT_FIELD).iterator();
-                List<Entry<String, LexiconEntry>> terms = new ArrayList<>();
-                while (te.next() != null) {
-                    terms.add(makePair(te));
-                }
-                return terms.iterator();
+                TermsEnum te = termsEnum();
+                return new TermsEnumIterator(te, te.next(), null, reuse);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
@@ -68,12 +145,18 @@ public class LuceneIndex extends Index {
 
         LuceneLexiconEntry entryFromTerm(Term t) {
             try {
-                long F;
-                if ((F = ir.totalTermFreq(t)) == (long) 0)
+                // the only seek in the term dictionary for this term: statistics and the
+                // TermState for opening its postings are all obtained from this position
+                final TermsEnum te = lookupEnum();
+                if (! te.seekExact(t.bytes()) || te.totalTermFreq() == 0)
+                    return null;
+                final LuceneLexiconEntry lie = makeEntry(te, t);
+                // the term may only occur in deleted documents
+                if (lie.getFrequency() == 0)
                     return null;
-                final LuceneLexiconEntry lie = new LuceneLexiconEntry();
-                lie.t = t;
-                lie.setStatistics(ir.docFreq(t), (int) F);
+                // impacts are walked on first use of the bounds, not on every lookup
+                if (impacts)
+                    lie.impactsSource = LuceneIndex.this;
                 return lie;
             } catch (final IOException ioe) {
                 throw new RuntimeException(ioe);
@@ -97,49 +180,229 @@ public class LuceneIndex extends Index {
             throw new UnsupportedOperationException();
         }
 
-        Entry<String, LexiconEntry> makePair(TermsEnum te) throws IOException {
+        /** whether the term that the TermsEnum is positioned on occurs in any live document */
+        boolean hasLivePosting(TermsEnum te) throws IOException {
+            final PostingsEnum pe = te.postings(null, PostingsEnum.NONE);
+            int docid;
+            while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                if (liveDocs.get(docid))
+                    return true;
+            return false;
+        }
+
+        LuceneLexiconEntry makeEntry(TermsEnum te, Term t) throws IOException {
+            return fillEntry(te, new LuceneLexiconEntry(), t);
+        }
 
-            LuceneLexiconEntry lie = new LuceneLexiconEntry();
-            lie.t = new Term(DEFAULT_FIELD, te.term());
+        LuceneLexiconEntry fillEntry(TermsEnum te, LuceneLexiconEntry lie, Term t) throws IOException {
+            lie.t = t;
+            lie.termState = te.termState();
+            if (liveStatistics) {
+                // Lucene's statistics include deleted documents, so count the live postings
+                int df = 0;
+                long tf = 0;
+                final PostingsEnum pe = te.postings(null, PostingsEnum.FREQS);
+                int docid;
+                while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (liveDocs.get(docid)) {
+                        df++;
+                        tf += pe.freq();
+                    }
+                }
+                lie.setStatistics(df, (int) tf);
+                return lie;
+            }
             lie.setStatistics(te.docFreq(), (int) te.totalTermFreq());
+            return lie;
+        }
+
+        Entry<String, LexiconEntry> makePair(TermsEnum te) throws IOException {
+            // Term does not copy the BytesRef, which the TermsEnum will reuse
+            LuceneLexiconEntry lie = makeEntry(te, new Term(DEFAULT_FIELD, BytesRef.deepCopyOf(te.term())));
             return Pair.of(lie.t.text(), lie);
         }
 
         @Override
         public Iterator<Entry<String, LexiconEntry>> getLexiconEntryRange(final String from, final String to) {
+            return getLexiconEntryRange(from, to, false);
+        }
+
+        /** Iterates over the terms from..to inclusive. If reuse is set, the returned entries are reused between calls to next(). */
+        public Iterator<Entry<String, LexiconEntry>> getLexiconEntryRange(final String from, final String to, boolean reuse) {
             try {
-                TermsEnum te = ir.terms(DEFAULT_FIELD).iterator();
-                final Term firstTerm = new Term(DEFAULT_FIELD, from);
-                TermsEnum.SeekStatus seek = te.seekCeil(firstTerm.bytes());
-                List<Entry<String, LexiconEntry>> terms = new ArrayList<>();
-                if (seek == TermsEnum.SeekStatus.END) {
-                    return terms.iterator();
+                TermsEnum te = termsEnum();
+                TermsEnum.SeekStatus seek = te.seekCeil(new BytesRef(from));
+                BytesRef first = seek == TermsEnum.SeekStatus.END ? null : te.term();
+                return new TermsEnumIterator(te, first, new BytesRef(to), reuse);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+
+    /** The lexicon over several fields, whose terms are those of any field. Entries carry the
+     * statistics of each field, and those of the merged postings of all fields. */
+    class FieldLexicon extends LuceneLexicon {
+
+        /** Merges the sorted TermsEnums of the fields, up to and including an optional last 
+         * term. Entries are not reused. */
+        class FieldTermsIterator implements Iterator<Entry<String, LexiconEntry>> {
+            final TermsEnum[] tes;
+            /** the current term of each TermsEnum, or null when exhausted */
+            final BytesRef[] heads;
+            final BytesRef last;
+            /** what next() will return, or null when exhausted */
+            Entry<String, LexiconEntry> nextPair;
+
+            FieldTermsIterator(TermsEnum[] _tes, BytesRef[] _heads, BytesRef _last) throws IOException {
+                tes = _tes;
+                heads = _heads;
+                last = _last;
+                advance();
+            }
+
+            /** finds the next term, skipping any that only occur in deleted documents */
+            void advance() throws IOException {
+                nextPair = null;
+                BytesRef min;
+                while (nextPair == null && (min = smallest(heads)) != null) {
+                    if (last != null && min.compareTo(last) > 0)
+                        return;
+                    final Term t = new Term(DEFAULT_FIELD, BytesRef.deepCopyOf(min));
+                    final boolean[] present = new boolean[tes.length];
+                    for (int f = 0; f < tes.length; f++)
+                        present[f] = heads[f] != null && heads[f].equals(t.bytes());
+                    // the TermsEnums are positioned on the term, so no seeks are needed
+                    final LuceneLexiconEntry lie = makeFieldEntry(t, tes, present);
+                    for (int f = 0; f < tes.length; f++)
+                        if (present[f])
+                            heads[f] = tes[f].next();
+                    if (lie != null)
+                        nextPair = Pair.of(t.text(), lie);
                 }
-                terms.add(makePair(te));
+            }
 
-                while (te.next() != null) {
-                    Entry<String, LexiconEntry> entry = makePair(te);
-                    if (entry.getKey().compareTo(to) > 0) {
-                        break;
-                    }
-                    terms.add(entry);
+            @Override
+            public boolean hasNext() {
+                return nextPair != null;
+            }
+
+            @Override
+            public Entry<String, LexiconEntry> next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                final Entry<String, LexiconEntry> rtr = nextPair;
+                try {
+                    advance();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
                 }
-                return terms.iterator();
+                return rtr;
+            }
+        }
+
+        @Override
+        public Iterator<Entry<String, LexiconEntry>> iterator(boolean reuse) {
+            try {
+                final TermsEnum[] tes = fieldTermsEnums();
+                final BytesRef[] heads = new BytesRef[tes.length];
+                for (int f = 0; f < tes.length; f++)
+                    heads[f] = tes[f] == null ? null : tes[f].next();
+                return new FieldTermsIterator(tes, heads, null);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
         }
+
+        @Override
+        public Iterator<Entry<String, LexiconEntry>> getLexiconEntryRange(final String from, final String to, boolean reuse) {
+            try {
+                final TermsEnum[] tes = fieldTermsEnums();
+                final BytesRef[] heads = new BytesRef[tes.length];
+                for (int f = 0; f < tes.length; f++)
+                    if (tes[f] != null && tes[f].seekCeil(new BytesRef(from)) != TermsEnum.SeekStatus.END)
+                        heads[f] = tes[f].term();
+                return new FieldTermsIterator(tes, heads, new BytesRef(to));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        LuceneLexiconEntry entryFromTerm(Term t) {
+            try {
+                final TermsEnum[] tes = fieldLookupEnums();
+                final boolean[] present = new boolean[tes.length];
+                for (int f = 0; f < tes.length; f++)
+                    present[f] = tes[f] != null && tes[f].seekExact(t.bytes());
+                return makeFieldEntry(t, tes, present);
+            } catch (final IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        /** Makes the entry of a term from the TermsEnums of the fields that contain it, which are
+         * positioned on the term. Lucene only has statistics per field, and a document may contain
+         * the term in several fields, so the document frequency of a term of several fields is
+         * that precomputed for the segment by UnionDocumentFrequencies, unless deleted documents
+         * are excluded, which needs a pass over the postings. Returns null if the term is in no
+         * field, or only in deleted documents. */
+        LuceneLexiconEntry makeFieldEntry(Term t, TermsEnum[] tes, boolean[] present) throws IOException {
+            final FieldLuceneLexiconEntry lie = new FieldLuceneLexiconEntry(fields.length);
+            lie.t = t;
+            int numPresent = 0;
+            int df = 0;
+            long tf = 0;
+            for (int f = 0; f < fields.length; f++) {
+                if (! present[f])
+                    continue;
+                lie.fieldStates[f] = tes[f].termState();
+                lie.fieldDocumentFrequencies[f] = tes[f].docFreq();
+                lie.fieldFrequencies[f] = (int) tes[f].totalTermFreq();
+                numPresent++;
+                df = tes[f].docFreq();
+                tf += lie.fieldFrequencies[f];
+            }
+            if (numPresent == 0)
+                return null;
+            if (liveStatistics) {
+                // Lucene's statistics include deleted documents, so count the live postings
+                final PostingsEnum[] pes = new PostingsEnum[fields.length];
+                for (int f = 0; f < fields.length; f++)
+                    if (present[f])
+                        pes[f] = tes[f].postings(null, PostingsEnum.FREQS);
+                Arrays.fill(lie.fieldDocumentFrequencies, 0);
+                Arrays.fill(lie.fieldFrequencies, 0);
+                df = 0;
+                tf = 0;
+                final FieldIterablePosting ip = new FieldIterablePosting(pes);
+                while (ip.next() != IterablePosting.EOL) {
+                    df++;
+                    tf += ip.getFrequency();
+                    for (int f = 0; f < fields.length; f++) {
+                        if (ip.fieldFrequencies[f] > 0) {
+                            lie.fieldDocumentFrequencies[f]++;
+                            lie.fieldFrequencies[f] += ip.fieldFrequencies[f];
+                        }
+                    }
+                }
+                if (df == 0)
+                    return null;
+            } else if (numPresent > 1) {
+                df = unionFrequencies.get(t.bytes());
+            }
+            lie.setStatistics(df, (int) tf);
+            return lie;
+        }
     }
 
-    class PostingEnumIterablePosting extends IterablePostingImpl {
+    class PostingEnumIterablePosting extends IterablePostingImpl implements NormPosting {
         PostingsEnum pe;
-        NumericDocValues ndv;
-        int docid;
+        int docid = -1;
         int f;
 
-        public PostingEnumIterablePosting(PostingsEnum _pe, NumericDocValues _ndv) {
+        public PostingEnumIterablePosting(PostingsEnum _pe) {
             pe = _pe;
-            ndv = _ndv;
             if (pe == null)
                 throw new IllegalArgumentException("PostingsEnum cannot be null");
         }
@@ -148,19 +411,41 @@ public class LuceneIndex extends Index {
         public void close() throws IOException {
         }
 
+        /** moves to the start of another posting list, so that streams can reuse this object */
+        void reset(PostingsEnum _pe) {
+            pe = _pe;
+            docid = -1;
+            f = 0;
+        }
+
         @Override
         public boolean endOfPostings() {
-            return docid != EOL;
+            return docid == EOL;
         }
 
         @Override
         public int next() throws IOException {
-            docid = pe.nextDoc();
-            if (docid == DocIdSetIterator.NO_MORE_DOCS)
+            return moveTo(pe.nextDoc());
+        }
+
+        @Override
+        public int next(int target) throws IOException {
+            // Lucene cannot advance backwards, and we may already be there
+            if (target <= docid)
+                return docid;
+            return moveTo(pe.advance(target));
+        }
+
+        /** records the posting that the PostingsEnum has landed on, or the next posting of a live document */
+        int moveTo(int target) throws IOException {
+            if (liveDocs != null) {
+                while (target != DocIdSetIterator.NO_MORE_DOCS && ! liveDocs.get(target))
+                    target = pe.nextDoc();
+            }
+            if (target == DocIdSetIterator.NO_MORE_DOCS)
                 return docid = EOL;
             f = pe.freq();
-            ndv.advance(docid);
-            return docid;
+            return docid = target;
         }
 
         @Override
@@ -173,7 +458,7 @@ public class LuceneIndex extends Index {
             try {
                 if (DOCLEN_FROM_TERM_VECTORS)
                     return (int) ir.getTermVector(this.getId(), DEFAULT_FIELD).getSumTotalTermFreq();
-                return (int) SmallFloat.byte4ToInt((byte) ndv.longValue());
+                return documentLength(docid);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
@@ -188,62 +473,528 @@ public class LuceneIndex extends Index {
         public int getId() {
             return docid;
         }
+
+        @Override
+        public int getNorm() {
+            return norms == null ? -1 : norms[docid] & 0xFF;
+        }
     }
 
+    /** Postings with positions. Positions are only decoded when getPositions() is first called
+     * for a posting, into an array that is reused by later postings of the same frequency, so
+     * traversing positions allocates nothing once frequencies have been seen. The array is
+     * therefore only valid until next() is called. */
     class PositionsPostingEnumIterablePosting extends PostingEnumIterablePosting implements BlockPosting {
+        /** postings with frequencies up to this share an array per frequency; longer ones share the largest seen */
+        static final int MAX_CACHED_FREQUENCY = 64;
+
+        final int[][] byFrequency = new int[MAX_CACHED_FREQUENCY + 1][];
         int[] positions;
+        /** whether positions holds the positions of the current posting */
+        boolean decoded;
 
-        public PositionsPostingEnumIterablePosting(PostingsEnum _pe, NumericDocValues _ndv) {
-            super(_pe, _ndv);
+        public PositionsPostingEnumIterablePosting(PostingsEnum _pe) {
+            super(_pe);
         }
 
         @Override
         public int[] getPositions() {
+            if (decoded)
+                return positions;
             try {
-                if (positions == null)
-                    positions = new int[f];
+                positions = buffer(f);
                 for (int p = 0; p < f; p++)
                     positions[p] = pe.nextPosition();
+                decoded = true;
                 return positions;
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
         }
 
+        /** returns an array of exactly length f, as callers use the length of the positions array */
+        int[] buffer(int length) {
+            if (length <= MAX_CACHED_FREQUENCY) {
+                if (byFrequency[length] == null)
+                    byFrequency[length] = new int[length];
+                return byFrequency[length];
+            }
+            return positions != null && positions.length == length ? positions : new int[length];
+        }
+
+        @Override
+        int moveTo(int target) throws IOException {
+            decoded = false;
+            return super.moveTo(target);
+        }
+
+        @Override
+        void reset(PostingsEnum _pe) {
+            decoded = false;
+            super.reset(_pe);
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            // a copy, as the writable posting may outlive the current posting
+            return new BlockPostingImpl(getId(), getFrequency(), getPositions().clone());
+        }
+    }
+
+    // the BlockMaxPosting methods of postings that wrap an ImpactsEnum
+
+    static int advanceShallow(ImpactsEnum ie, int target) throws IOException {
+        ie.advanceShallow(target);
+        return ie.getImpacts().getDocIdUpTo(0);
+    }
+
+    static int getBlockMaxFrequency(ImpactsEnum ie) throws IOException {
+        int max = 0;
+        for (Impact i : ie.getImpacts().getImpacts(0))
+            max = Math.max(max, i.freq);
+        return max;
+    }
+
+    static double getBlockMaxScore(ImpactsEnum ie, WeightingModel wm) throws IOException {
+        double max = 0;
+        for (Impact i : ie.getImpacts().getImpacts(0))
+            max = Math.max(max, wm.score(i.freq, NORM_TABLE[(int) i.norm & 0xFF]));
+        return max;
+    }
+
+    class ImpactsPostingEnumIterablePosting extends PostingEnumIterablePosting implements BlockMaxPosting {
+        final ImpactsEnum ie;
+
+        public ImpactsPostingEnumIterablePosting(ImpactsEnum _ie) {
+            super(_ie);
+            ie = _ie;
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            return LuceneIndex.advanceShallow(ie, target);
+        }
+
+        @Override
+        public int getBlockMaxFrequency() throws IOException {
+            return LuceneIndex.getBlockMaxFrequency(ie);
+        }
+
+        @Override
+        public double getBlockMaxScore(WeightingModel wm) throws IOException {
+            return LuceneIndex.getBlockMaxScore(ie, wm);
+        }
+    }
+
+    class ImpactsPositionsPostingEnumIterablePosting extends PositionsPostingEnumIterablePosting implements BlockMaxPosting {
+        final ImpactsEnum ie;
+
+        public ImpactsPositionsPostingEnumIterablePosting(ImpactsEnum _ie) {
+            super(_ie);
+            ie = _ie;
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            return LuceneIndex.advanceShallow(ie, target);
+        }
+
+        @Override
+        public int getBlockMaxFrequency() throws IOException {
+            return LuceneIndex.getBlockMaxFrequency(ie);
+        }
+
+        @Override
+        public double getBlockMaxScore(WeightingModel wm) throws IOException {
+            return LuceneIndex.getBlockMaxScore(ie, wm);
+        }
+    }
+
+    /** Postings of a term in several fields, merged in one pass over the postings of each
+     * field. A document is in the postings if any of its fields contains the term, and its
+     * frequency and length are summed over the fields. Field lengths are decoded from the norms
+     * of each field. Positions are not available. */
+    class FieldIterablePosting extends IterablePostingImpl implements FieldPosting {
+        /** the postings of each field, or null where the term does not occur in a field */
+        final PostingsEnum[] pes;
+        /** the document that the postings of each field are on */
+        final int[] fieldDocs;
+        final int[] fieldFrequencies;
+        /** the lengths of the fields of the current document, once lengthsKnown, as read from
+         * the norms or as set by setFieldLengths() */
+        final int[] fieldLengths;
+        boolean lengthsKnown;
+        int docid = -1;
+        int f;
+
+        FieldIterablePosting(PostingsEnum[] _pes) {
+            pes = _pes;
+            fieldDocs = new int[pes.length];
+            fieldFrequencies = new int[pes.length];
+            fieldLengths = new int[pes.length];
+            for (int i = 0; i < pes.length; i++)
+                fieldDocs[i] = pes[i] == null ? DocIdSetIterator.NO_MORE_DOCS : -1;
+        }
+
         @Override
         public int next() throws IOException {
-            positions = null;
-            return super.next();
+            if (docid == EOL)
+                return EOL;
+            for (int i = 0; i < pes.length; i++)
+                if (fieldDocs[i] == docid)
+                    fieldDocs[i] = pes[i].nextDoc();
+            return land();
+        }
+
+        @Override
+        public int next(int target) throws IOException {
+            // Lucene cannot advance backwards, and we may already be there
+            if (target <= docid)
+                return docid;
+            for (int i = 0; i < pes.length; i++)
+                if (fieldDocs[i] < target)
+                    fieldDocs[i] = pes[i].advance(target);
+            return land();
+        }
+
+        /** moves to the smallest document of the fields' postings that is live */
+        int land() throws IOException {
+            while (true) {
+                int min = DocIdSetIterator.NO_MORE_DOCS;
+                for (int d : fieldDocs)
+                    min = Math.min(min, d);
+                if (min == DocIdSetIterator.NO_MORE_DOCS)
+                    return docid = EOL;
+                if (liveDocs == null || liveDocs.get(min)) {
+                    lengthsKnown = false;
+                    f = 0;
+                    for (int i = 0; i < pes.length; i++) {
+                        fieldFrequencies[i] = fieldDocs[i] == min ? pes[i].freq() : 0;
+                        f += fieldFrequencies[i];
+                    }
+                    return docid = min;
+                }
+                for (int i = 0; i < pes.length; i++)
+                    if (fieldDocs[i] == min)
+                        fieldDocs[i] = pes[i].nextDoc();
+            }
         }
 
+        @Override
+        public boolean endOfPostings() {
+            return docid == EOL;
+        }
+
+        @Override
+        public int getId() {
+            return docid;
+        }
+
+        @Override
+        public int getFrequency() {
+            return f;
+        }
+
+        @Override
+        public int getDocumentLength() {
+            return documentLength(docid);
+        }
+
+        /** the array is reused, so is only valid until next() is called */
+        @Override
+        public int[] getFieldFrequencies() {
+            return fieldFrequencies;
+        }
+
+        /** the array is reused, so is only valid until next() is called */
+        @Override
+        public int[] getFieldLengths() {
+            if (! lengthsKnown) {
+                for (int i = 0; i < fieldLengths.length; i++)
+                    fieldLengths[i] = fieldLength(i, docid);
+                lengthsKnown = true;
+            }
+            return fieldLengths;
+        }
+
+        /** sets the lengths of the fields of the current document, e.g. as obtained from the
+         * document index by field-aware matching, until next() is called */
+        @Override
+        public void setFieldLengths(int[] newLengths) {
+            System.arraycopy(newLengths, 0, fieldLengths, 0, fieldLengths.length);
+            lengthsKnown = true;
+        }
+
+        @Override
+        public WritablePosting asWritablePosting() {
+            final FieldPostingImpl fp = new FieldPostingImpl(docid, f, fieldFrequencies.length);
+            System.arraycopy(fieldFrequencies, 0, fp.getFieldFrequencies(), 0, fieldFrequencies.length);
+            fp.setFieldLengths(getFieldLengths().clone());
+            return fp;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
     }
 
     final LeafReader ir;
+    /** the documents that are not deleted, or null if the segment has no deletions */
+    final Bits liveDocs;
+    /** should statistics exclude deleted documents, which costs a pass over the postings */
+    final boolean liveStatistics;
+    /** the Lucene fields that are Terrier fields, from lucene.fields. If empty, only DEFAULT_FIELD is used */
+    final String[] fields = fieldsProperty();
     final boolean blocks;
+    /** should postings and lexicon entries expose Lucene's impacts */
+    final boolean impacts = fields.length == 0
+            && Boolean.parseBoolean(ApplicationSetup.getProperty("lucene.impacts", "false"));
     final String loc;
-    DocumentIndex doi;
+    /** exact document lengths, if lucene.doclens.exact is set, otherwise null and lengths are decoded from the norms */
+    final ExactDocumentLengths exactLengths;
+    /** the one-byte norm of each document, if lengths are decoded from the norms, otherwise null */
+    final byte[] norms;
+    /** the one-byte norms of each field, if there are fields, otherwise null */
+    final byte[][] fieldNorms;
+    /** the document frequencies over all fields, if there are fields and statistics include
+     * deleted documents, otherwise null */
+    final UnionDocumentFrequencies unionFrequencies;
+    final CollectionStatistics collectionStatistics;
+    final Lexicon<String> lexicon = newLexicon();
+    final PostingIndex<?> invertedIndex = fields.length > 0 ? new FieldPostingIndex() : new LucenePostingIndex();
+    final DocumentIndex documentIndex = newDocumentIndex();
+    final LuceneMetaIndex meta;
+    /** TermsEnums for seeking single terms, which are not thread-safe, so one per thread. Closeable,
+     * such that threads of a pool do not keep a retired segment reachable through them */
+    final CloseableThreadLocal<TermsEnum> lookupEnums = new CloseableThreadLocal<>();
+    /** as lookupEnums, with one TermsEnum per field, or null where a field is not in this segment */
+    final CloseableThreadLocal<TermsEnum[]> fieldLookupEnums = new CloseableThreadLocal<>();
+
+    /** length of a document for each value of a one-byte norm, as encoded by BM25Similarity */
+    static final int[] NORM_TABLE = new int[256];
+    static {
+        for (int i = 0; i < NORM_TABLE.length; i++)
+            NORM_TABLE[i] = SmallFloat.byte4ToInt((byte) i);
+    }
 
     public LuceneIndex(LeafReader _lr, String _loc) {
         this.ir = _lr;
         this.loc = _loc;
-        blocks = ir.getFieldInfos().hasProx();
-        if (ir.getFieldInfos().fieldInfo(DEFAULT_FIELD) == null)
+        liveDocs = ir.getLiveDocs();
+        liveStatistics = liveDocs != null
+                && Boolean.parseBoolean(ApplicationSetup.getProperty("lucene.deletions.statistics", "false"));
+        // positions are not merged across fields
+        blocks = fields.length == 0 && ir.getFieldInfos().hasProx();
+        if (fields.length == 0 && ir.getFieldInfos().fieldInfo(DEFAULT_FIELD) == null)
             throw new IllegalArgumentException(
                     "We assume that the Lucene index should have a field named 'contents' for the text of the documents");
-        if (ir.getFieldInfos().fieldInfo("id") == null)
+        if (ir.getFieldInfos().fieldInfo(DOCNO_FIELD) == null)
             throw new IllegalArgumentException(
                     "We assume that the Lucene index should have a field named 'id' for the docnos");
         try {
             if (DOCLEN_FROM_TERM_VECTORS && ir.getTermVector(0, DEFAULT_FIELD) == null)
                 throw new IllegalArgumentException(
                         "We assume that the Lucene index should have term vectors in order to get document lengths");
+            exactLengths = fields.length == 0
+                    && Boolean.parseBoolean(ApplicationSetup.getProperty("lucene.doclens.exact", "false"))
+                    ? ExactDocumentLengths.load(ir, DEFAULT_FIELD)
+                    : null;
+            norms = exactLengths == null && fields.length == 0 ? loadNorms(ir, DEFAULT_FIELD) : null;
+            fieldNorms = fields.length > 0 ? new byte[fields.length][] : null;
+            for (int f = 0; f < fields.length; f++)
+                fieldNorms[f] = loadNorms(ir, fields[f]);
+            unionFrequencies = fields.length > 0 && ! liveStatistics
+                    ? UnionDocumentFrequencies.load(ir, fields)
+                    : null;
+            collectionStatistics = fields.length > 0
+                    ? fieldCollectionStatistics()
+                    : liveStatistics
+                    ? liveCollectionStatistics()
+                    : new CollectionStatistics(ir.numDocs(), (int) ir.terms(DEFAULT_FIELD).size(),
+                        ir.getSumTotalTermFreq(DEFAULT_FIELD), ir.getSumDocFreq(DEFAULT_FIELD),
+                        new long[0], new String[0], blocks);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        meta = new LuceneMetaIndex(ir, DOCNO_FIELD);
+        // the segment may be shared by several snapshots, and is retired when its reader closes
+        final IndexReader.CacheHelper helper = ir.getReaderCacheHelper();
+        if (helper != null)
+            helper.addClosedListener(key -> releaseThreadLocals());
+    }
+
+    /** drops the per-thread structures of every thread */
+    void releaseThreadLocals() throws IOException {
+        lookupEnums.close();
+        fieldLookupEnums.close();
+        meta.close();
+    }
+
+    /** collection statistics of the live documents only, from a pass over all postings */
+    CollectionStatistics liveCollectionStatistics() throws IOException {
+        int numTerms = 0;
+        long numTokens = 0;
+        long numPointers = 0;
+        final TermsEnum te = termsEnum();
+        PostingsEnum pe = null;
+        while (te.next() != null) {
+            pe = te.postings(pe, PostingsEnum.FREQS);
+            boolean live = false;
+            int docid;
+            while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (liveDocs.get(docid)) {
+                    live = true;
+                    numPointers++;
+                    numTokens += pe.freq();
+                }
+            }
+            if (live)
+                numTerms++;
+        }
+        return new CollectionStatistics(ir.numDocs(), numTerms, numTokens, numPointers,
+                new long[0], new String[0], blocks);
+    }
+
+    /** Collection statistics over all fields. Terms are counted once however many fields they
+     * occur in, and the number of pointers is the sum of the document frequencies of the
+     * lexicon, which count a document once however many of its fields contain the term. */
+    CollectionStatistics fieldCollectionStatistics() throws IOException {
+        final long[] fieldTokens = new long[fields.length];
+        long numTokens = 0;
+        long numPointers = 0;
+        int numTerms = 0;
+        if (liveStatistics) {
+            final Iterator<Entry<String, LexiconEntry>> iter = lexicon.iterator();
+            while (iter.hasNext()) {
+                final FieldLuceneLexiconEntry le = (FieldLuceneLexiconEntry) iter.next().getValue();
+                numTerms++;
+                numPointers += le.getDocumentFrequency();
+                numTokens += le.getFrequency();
+                for (int f = 0; f < fields.length; f++)
+                    fieldTokens[f] += le.fieldFrequencies[f];
+            }
+        } else {
+            for (int f = 0; f < fields.length; f++) {
+                if (ir.terms(fields[f]) == null)
+                    continue;
+                fieldTokens[f] = ir.getSumTotalTermFreq(fields[f]);
+                numTokens += fieldTokens[f];
+            }
+            numPointers = unionFrequencies.numPointers;
+            numTerms = unionFrequencies.numTerms;
+        }
+        return new CollectionStatistics(ir.numDocs(), numTerms, numTokens, numPointers,
+                fieldTokens, fields.clone(), blocks);
+    }
+
+    /** the Lucene fields named by the lucene.fields property, e.g. "title,contents" */
+    static String[] fieldsProperty() {
+        final String value = ApplicationSetup.getProperty("lucene.fields", "").trim();
+        return value.isEmpty() ? new String[0] : value.split("\\s*,\\s*");
+    }
+
+    /** counts the distinct terms of several sorted TermsEnums, some of which may be null */
+    static int countTerms(TermsEnum[] tes) throws IOException {
+        final BytesRef[] heads = new BytesRef[tes.length];
+        for (int i = 0; i < tes.length; i++)
+            heads[i] = tes[i] == null ? null : tes[i].next();
+        int count = 0;
+        BytesRef min;
+        while ((min = smallest(heads)) != null) {
+            // the TermsEnum that min came from reuses it
+            min = BytesRef.deepCopyOf(min);
+            count++;
+            for (int i = 0; i < tes.length; i++)
+                if (heads[i] != null && heads[i].equals(min))
+                    heads[i] = tes[i].next();
+        }
+        return count;
+    }
+
+    /** the smallest of some terms, some of which may be null, or null if all are */
+    static BytesRef smallest(BytesRef[] terms) {
+        BytesRef min = null;
+        for (BytesRef t : terms)
+            if (t != null && (min == null || t.compareTo(min) < 0))
+                min = t;
+        return min;
+    }
+
+    /** reads the norms of all documents once, rather than through a NumericDocValues per posting list */
+    static byte[] loadNorms(LeafReader ir, String field) throws IOException {
+        final byte[] norms = new byte[ir.maxDoc()];
+        final NumericDocValues ndv = ir.getNormValues(field);
+        if (ndv == null)
+            return norms;
+        int docid;
+        while ((docid = ndv.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+            norms[docid] = (byte) ndv.longValue();
+        return norms;
+    }
+
+    /** the length of a document, exact or decoded from its norm, or summed over the fields */
+    int documentLength(int docid) {
+        if (fieldNorms != null) {
+            int length = 0;
+            for (byte[] n : fieldNorms)
+                length += NORM_TABLE[n[docid] & 0xFF];
+            return length;
+        }
+        if (norms == null)
+            return exactLengths.getLength(docid);
+        return NORM_TABLE[norms[docid] & 0xFF];
+    }
+
+    /** the length of a document in one field, decoded from its norm */
+    int fieldLength(int field, int docid) {
+        return NORM_TABLE[fieldNorms[field][docid] & 0xFF];
+    }
+
+    Lexicon<String> newLexicon() {
+        return fields.length > 0 ? new FieldLexicon() : new LuceneLexicon();
+    }
+
+    DocumentIndex newDocumentIndex() {
+        return fields.length > 0 ? new FieldLuceneDocumentIndex() : new LuceneDocumentIndex();
+    }
+
+    TermsEnum termsEnum() throws IOException {
+        return ir.terms(DEFAULT_FIELD).iterator();
+    }
+
+    /** a TermsEnum for each field, or null where a field is not in this segment */
+    TermsEnum[] fieldTermsEnums() throws IOException {
+        final TermsEnum[] tes = new TermsEnum[fields.length];
+        for (int f = 0; f < fields.length; f++) {
+            final Terms terms = ir.terms(fields[f]);
+            tes[f] = terms == null ? null : terms.iterator();
+        }
+        return tes;
+    }
+
+    /** returns this thread's TermsEnums of the fields. Callers must not retain them */
+    TermsEnum[] fieldLookupEnums() throws IOException {
+        TermsEnum[] tes = fieldLookupEnums.get();
+        if (tes == null) {
+            tes = fieldTermsEnums();
+            fieldLookupEnums.set(tes);
+        }
+        return tes;
+    }
+
+    /** returns this thread's TermsEnum for seeking single terms. Callers must not retain it */
+    TermsEnum lookupEnum() throws IOException {
+        TermsEnum te = lookupEnums.get();
+        if (te == null) {
+            te = termsEnum();
+            lookupEnums.set(te);
+        }
+        return te;
     }
 
     @Override
     public void close() throws IOException {
+        releaseThreadLocals();
         ir.close();
     }
 
@@ -254,19 +1005,7 @@ public class LuceneIndex extends Index {
 
     @Override
     public CollectionStatistics getCollectionStatistics() {
-        try {
-            assert ir.terms(DEFAULT_FIELD) != null;
-
-            final int numDocs = ir.numDocs();
-            final int numTerms = (int) ir.terms(DEFAULT_FIELD).size();
-            final long numTokens = ir.getSumTotalTermFreq(DEFAULT_FIELD);
-            final long numPointers = ir.getSumDocFreq(DEFAULT_FIELD);
-            final long[] fieldTokens = new long[0];
-            final String[] fieldNames = new String[0];
-            return new CollectionStatistics(numDocs, numTerms, numTokens, numPointers, fieldTokens, fieldNames, blocks);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-        }
+        return collectionStatistics;
     }
 
     @Override
@@ -275,53 +1014,46 @@ public class LuceneIndex extends Index {
         return null;
     }
 
-    @Override
-    public DocumentIndex getDocumentIndex() {
-        if (doi != null)
-            return doi;
-        
-        try{
-            int[] doclens = new int[ir.numDocs()];
-            NumericDocValues ndv = this.ir.getNormValues(DEFAULT_FIELD);
-            int docid;
-            while( (docid = ndv.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
-            {
-                doclens[docid] = (int) ndv.longValue();
-            }            
+    class LuceneDocumentIndex implements DocumentIndex {
 
-            return doi = new DocumentIndex() {
+        /** docids range up to maxDoc, including any deleted documents */
+        @Override
+        public int getNumberOfDocuments() {
+            return ir.maxDoc();
+        }
 
-                @Override
-                public int getNumberOfDocuments() {
-                    return ir.numDocs();
-                }
+        @Override
+        public int getDocumentLength(final int docid) throws IOException {
+            return documentLength(docid);
+        }
 
-                @Override
-                public int getDocumentLength(final int docid) throws IOException {
-
-                    return doclens[docid];
-                    // if (DOCLEN_FROM_TERM_VECTORS)
-                    // {
-                    //     Terms t = ir.getTermVector(docid, DEFAULT_FIELD);
-                    //     if (t == null)
-                    //         throw new UnsupportedOperationException("term vectors not found");
-                    //     return (int) t.getSumTotalTermFreq();
-                    // }
-                    // throw new UnsupportedOperationException("term vectors not supported for doclen lookups");
-                }
+        @Override
+        public DocumentIndexEntry getDocumentEntry(final int docid) throws IOException {
+            // without a term vector, e.g. for an empty document, there are no terms to count
+            final Terms tv = ir.getTermVector(docid, DEFAULT_FIELD);
+            int numTerms = tv == null ? 0 : (int) tv.size();
+            return new LuceneDocumentIndexEntry(getDocumentLength(docid),
+                    new SimpleBitIndexPointer((byte) 0, (long) docid, (byte) 0, numTerms), docid);
+        }
+    }
 
-                @Override
-                public DocumentIndexEntry getDocumentEntry(final int docid) throws IOException {
-                    int numTerms = (int) ir.getTermVector(docid, DEFAULT_FIELD).size();
-                    return new LuceneDocumentIndexEntry(getDocumentLength(docid),
-                            new SimpleBitIndexPointer((byte) 0, (long) docid, (byte) 0, numTerms), docid);
-                }
-            };
-        } catch (Exception ioe ) {
-            throw new RuntimeException("Could not load doclens: ", ioe);
+    /** also gives the length of each field of a document */
+    class FieldLuceneDocumentIndex extends LuceneDocumentIndex implements FieldDocumentIndex {
+
+        @Override
+        public int[] getFieldLengths(final int docid) throws IOException {
+            final int[] lengths = new int[fields.length];
+            for (int f = 0; f < fields.length; f++)
+                lengths[f] = fieldLength(f, docid);
+            return lengths;
         }
     }
 
+    @Override
+    public DocumentIndex getDocumentIndex() {
+        return documentIndex;
+    }
+
     @Override
     public Object getIndexStructure(final String structureName) {
         switch (structureName) {
@@ -343,34 +1075,138 @@ public class LuceneIndex extends Index {
 
     @Override
     public Object getIndexStructureInputStream(final String structureName) {
-        // TODO Auto-generated method stub
+        try {
+            switch (structureName) {
+            case "lexicon":
+                return ((LuceneLexicon) lexicon).iterator(false);
+            case "document":
+                return IndexInputStreams.documents(documentIndex, ir.maxDoc());
+            case "direct":
+                return getDirectIndex() == null
+                    ? null
+                    : new IndexInputStreams.DocumentPostingStream(documentIndex, getDirectIndex(), ir.maxDoc());
+            case "inverted":
+                return fields.length > 0
+                    ? new IndexInputStreams.LexiconPostingStream(lexicon.iterator(), invertedIndex)
+                    : new InvertedIndexInputStream();
+            case "meta":
+                return IndexInputStreams.meta(meta, ir.maxDoc());
+            default:
+                break;
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
         return null;
     }
 
-    @Override
-    public PostingIndex<?> getInvertedIndex() {
-        return new PostingIndex<LuceneLexiconEntry>() {
+    /** Streams all posting lists in term order with a single TermsEnum, which only ever moves 
+     * to the next term, and a single PostingsEnum and posting object, which are reused for 
+     * every term. The lexicon entry of the current term is only made if requested. */
+    class InvertedIndexInputStream extends IndexInputStreams.PostingStream {
+        final TermsEnum te = termsEnum();
+        final long numTerms = ir.terms(DEFAULT_FIELD).size();
+        final int flags = blocks ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+        long termsRead = 0;
+        PostingsEnum pe;
+        PostingEnumIterablePosting posting;
 
-            @Override
-            public void close() throws IOException {
+        InvertedIndexInputStream() throws IOException {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return termsRead < numTerms;
+        }
+
+        @Override
+        public IterablePosting getNextPostings() throws IOException {
+            if (te.next() == null) {
+                termsRead = numTerms;
+                return null;
             }
+            termsRead++;
+            pe = te.postings(pe, flags);
+            if (posting == null)
+                posting = blocks ? new PositionsPostingEnumIterablePosting(pe) : new PostingEnumIterablePosting(pe);
+            else
+                posting.reset(pe);
+            return posting;
+        }
 
-            @Override
-            public IterablePosting getPostings(Pointer _lEntry) throws IOException {
-                LuceneLexiconEntry lEntry = (LuceneLexiconEntry) _lEntry;
-                PostingsEnum pe = null;
-                if (blocks) {
-                    pe = MultiTerms.getTermPostingsEnum(ir, DEFAULT_FIELD, new BytesRef(lEntry.t.text())
-                    /* , PostingsEnum.FREQS & PostingsEnum.POSITIONS */ // these arent needed it seem
-                    );
-                    // pe = ir.postings(lEntry.t, PostingsEnum.FREQS & PostingsEnum.POSITIONS);
-                    return new PositionsPostingEnumIterablePosting(pe, ir.getNormValues(DEFAULT_FIELD));
-                }
-                pe = MultiTerms.getTermPostingsEnum(ir, DEFAULT_FIELD, new BytesRef(lEntry.t.text()));
-                // pe = ir.postings(lEntry.t);
-                return new PostingEnumIterablePosting(pe, ir.getNormValues(DEFAULT_FIELD));
+        @Override
+        public int getNumberOfCurrentPostings() {
+            try {
+                return te.docFreq();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
             }
-        };
+        }
+
+        @Override
+        public Pointer getCurrentPointer() {
+            try {
+                return ((LuceneLexicon) lexicon).makeEntry(te, new Term(DEFAULT_FIELD, BytesRef.deepCopyOf(te.term())));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+
+    class LucenePostingIndex implements PostingIndex<LuceneLexiconEntry> {
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public IterablePosting getPostings(Pointer _lEntry) throws IOException {
+            LuceneLexiconEntry lEntry = (LuceneLexiconEntry) _lEntry;
+            final TermsEnum te = lookupEnum();
+            if (lEntry.termState != null) {
+                // repositions without seeking in the term dictionary
+                te.seekExact(lEntry.t.bytes(), lEntry.termState);
+            } else if (! te.seekExact(lEntry.t.bytes())) {
+                throw new IOException("Term " + lEntry.t + " not found");
+            }
+            // the postings are independent of the TermsEnum, which can be reused
+            final int flags = blocks ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+            if (impacts) {
+                if (blocks)
+                    return new ImpactsPositionsPostingEnumIterablePosting(te.impacts(flags));
+                return new ImpactsPostingEnumIterablePosting(te.impacts(flags));
+            }
+            if (blocks)
+                return new PositionsPostingEnumIterablePosting(te.postings(null, flags));
+            return new PostingEnumIterablePosting(te.postings(null, flags));
+        }
+    }
+
+    class FieldPostingIndex implements PostingIndex<FieldLuceneLexiconEntry> {
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public IterablePosting getPostings(Pointer _lEntry) throws IOException {
+            final FieldLuceneLexiconEntry lEntry = (FieldLuceneLexiconEntry) _lEntry;
+            final TermsEnum[] tes = fieldLookupEnums();
+            final PostingsEnum[] pes = new PostingsEnum[fields.length];
+            for (int f = 0; f < fields.length; f++) {
+                if (lEntry.fieldStates[f] == null)
+                    continue;
+                // repositions without seeking in the term dictionary
+                tes[f].seekExact(lEntry.t.bytes(), lEntry.fieldStates[f]);
+                pes[f] = tes[f].postings(null, PostingsEnum.FREQS);
+            }
+            return new FieldIterablePosting(pes);
+        }
+    }
+
+    @Override
+    public PostingIndex<?> getInvertedIndex() {
+        return invertedIndex;
     }
 
     static class LuceneDocumentIndexEntry extends BasicDocumentIndexEntry {
@@ -391,74 +1227,137 @@ public class LuceneIndex extends Index {
     static class LuceneLexiconEntry extends BasicLexiconEntry {
         private static final long serialVersionUID = 1L;
         Term t;
-    }
-
-    @Override
-    public Lexicon<String> getLexicon() {
-        return new LuceneLexicon();
-    }
-
-    @Override
-    public MetaIndex getMetaIndex() {
-        return new MetaIndex() {
+        /** position of the term in the term dictionary of the segment, such that its postings
+         * can be opened without seeking again. Not serialized, as it is only valid for this segment */
+        transient TermState termState;
+        /** (frequency, document length) pairs from the top level of Lucene's impacts,
+         * which together bound the score of any posting of this term. Null if impacts 
+         * were not loaded. impactFreqs is set last, so the others are visible once it is. */
+        volatile int[] impactFreqs;
+        int[] impactLengths;
+        /** the segment from which impacts are loaded on first use, or null if they are not to be loaded */
+        transient LuceneIndex impactsSource;
+
+        boolean hasImpacts() {
+            return impactsSource != null || impactFreqs != null;
+        }
 
-            @Override
-            public void close() throws IOException {
+        /** loads the impacts from impactsSource, if not done yet */
+        void loadImpacts() {
+            if (impactFreqs != null || impactsSource == null)
+                return;
+            try {
+                final TermsEnum te = impactsSource.lookupEnum();
+                te.seekExact(t.bytes(), termState);
+                setImpacts(te.impacts(PostingsEnum.FREQS));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
             }
+        }
 
-            @Override
-            public String[] getKeys() {
-                return new String[] { "docno" };
-            }
+        /** takes the impacts of another entry of the same term in the same segment, without loading them */
+        void copyImpacts(LuceneLexiconEntry from) {
+            impactsSource = from.impactsSource;
+            impactLengths = from.impactLengths;
+            if (from.impactFreqs != null || from.impactsSource == null)
+                setMaxFrequencyInDocuments(from.getMaxFrequencyInDocuments());
+            impactFreqs = from.impactFreqs;
+        }
 
-            // TODO - these could go as default implementation in MetaIndex.
-            @Override
-            public String[][] getItems(String[] Keys, int[] docids) throws IOException {
-                String[][] rtr = new String[Keys.length][];
-                for (int i = 0; i < Keys.length; i++) {
-                    rtr[i] = getItems(Keys[i], docids);
-                }
-                return rtr;
-            }
+        @Override
+        public int getMaxFrequencyInDocuments() {
+            loadImpacts();
+            return super.getMaxFrequencyInDocuments();
+        }
 
-            @Override
-            public String[] getItems(String[] Keys, int docid) throws IOException {
-                String[] rtr = new String[Keys.length];
-                for (int i = 0; i < Keys.length; i++) {
-                    rtr[i] = getItem(Keys[i], docid);
+        void setImpacts(ImpactsEnum ie) throws IOException {
+            TIntArrayList freqs = new TIntArrayList();
+            TIntArrayList lengths = new TIntArrayList();
+            int maxtf = 0;
+            int from = 0;
+            while (from != DocIdSetIterator.NO_MORE_DOCS) {
+                ie.advanceShallow(Math.max(from, ie.docID()));
+                Impacts impacts = ie.getImpacts();
+                int level = impacts.numLevels() - 1;
+                int upTo = impacts.getDocIdUpTo(level);
+                for (Impact i : impacts.getImpacts(level)) {
+                    if (i.freq == Integer.MAX_VALUE) {
+                        // Lucene records no impacts for short posting lists or the tail block of
+                        // longer ones - these have at most 128 postings, so scan them instead.
+                        // A length of 1 is a safe lower bound on any document length.
+                        int tf = maxFrequency(ie, from, upTo);
+                        freqs.add(tf);
+                        lengths.add(1);
+                        maxtf = Math.max(maxtf, tf);
+                        break;
+                    }
+                    freqs.add(i.freq);
+                    lengths.add(NORM_TABLE[(int) i.norm & 0xFF]);
+                    maxtf = Math.max(maxtf, i.freq);
                 }
-                return rtr;
+                from = upTo == DocIdSetIterator.NO_MORE_DOCS ? upTo : upTo + 1;
             }
+            impactLengths = lengths.toNativeArray();
+            setMaxFrequencyInDocuments(maxtf);
+            impactFreqs = freqs.toNativeArray();
+        }
 
-            @Override
-            public String[] getItems(String Key, int[] docids) throws IOException {
-                String[] rtr = new String[docids.length];
-                for (int i = 0; i < docids.length; i++) {
-                    rtr[i] = getItem(Key, docids[i]);
-                }
-                return rtr;
+        static int maxFrequency(PostingsEnum pe, int from, int upTo) throws IOException {
+            int max = 0;
+            int doc = pe.docID() < from ? pe.advance(from) : pe.docID();
+            while (doc != DocIdSetIterator.NO_MORE_DOCS && doc <= upTo) {
+                max = Math.max(max, pe.freq());
+                doc = pe.nextDoc();
             }
+            return max;
+        }
 
-            @Override
-            public String getItem(String Key, int docid) throws IOException {
-                return ir.document(docid).get("id");
-            }
+        /** Returns an upper bound on the score that the specified weighting model can give
+         * to any posting of this term, or Double.MAX_VALUE if impacts were not loaded. */
+        public double getMaxScore(WeightingModel wm) {
+            loadImpacts();
+            final int[] freqs = impactFreqs;
+            if (freqs == null)
+                return Double.MAX_VALUE;
+            double max = 0;
+            for (int i = 0; i < freqs.length; i++)
+                max = Math.max(max, wm.score(freqs[i], impactLengths[i]));
+            return max;
+        }
+    }
 
-            @Override
-            public int getDocument(String key, String value) throws IOException {
-                return -1;
-            }
+    /** the entry of a term over several fields, with its statistics in each field */
+    static class FieldLuceneLexiconEntry extends LuceneLexiconEntry implements FieldEntryStatistics {
+        private static final long serialVersionUID = 1L;
+        /** the position of the term in the term dictionary of each field, or null where it does not occur */
+        transient TermState[] fieldStates;
+        int[] fieldFrequencies;
+        int[] fieldDocumentFrequencies;
+
+        FieldLuceneLexiconEntry(int numFields) {
+            fieldStates = new TermState[numFields];
+            fieldFrequencies = new int[numFields];
+            fieldDocumentFrequencies = new int[numFields];
+        }
 
-            @Override
-            public String[] getAllItems(int docid) throws IOException {
-                return new String[] { getItem("docno", docid) };
-            }
+        @Override
+        public int[] getFieldFrequencies() {
+            return fieldFrequencies;
+        }
 
-            @Override
-            public int size() {
-                return getCollectionStatistics().getNumberOfDocuments();
-            }
-        };
+        public int[] getFieldDocumentFrequencies() {
+            return fieldDocumentFrequencies;
+        }
+    }
+
+    @Override
+    public Lexicon<String> getLexicon() {
+        return lexicon;
+    }
+
+    @Override
+    public MetaIndex getMetaIndex() {
+        return meta;
     }
 
     @Override
@@ -477,6 +1376,11 @@ public class LuceneIndex extends Index {
         }
     }
 
+    @Override
+    public boolean hasIndexStructureInputStream(String structureName) {
+        return hasIndexStructure(structureName);
+    }
+
     
 
 
@@ -0,0 +1,165 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.IndexUtil;
+import org.terrier.structures.indexing.DiskIndexWriter;
+import org.terrier.structures.merging.StructureMerger;
+
+/** Converts a Lucene index into a native Terrier index, with lexicon, inverted, document
+ * and meta structures, and a direct index if the Lucene index has term vectors. Each
+ * segment is written as a Terrier index by its own worker, reading it through LuceneIndex
+ * (or DirectLuceneIndex), and the segment indices are then merged pairwise, in rounds
+ * whose merges also run concurrently. Segments are merged in order, so that docids are
+ * those of the Lucene index. Writing and merging both stream the structures, so memory use
+ * does not grow with the size of the collection. Usage:
+ * <pre>
+ * java -cp ... org.terrier.lucene.LuceneIndexConverter [-threads N] [-prefix data] /path/to/lucene/index /path/to/terrier/index
+ * </pre>
+ */
+public class LuceneIndexConverter {
+
+    final int threads;
+
+    public LuceneIndexConverter(int _threads) {
+        this.threads = _threads;
+    }
+
+    /** Converts the Lucene index in luceneDir into a Terrier index at destPath with the specified prefix */
+    public void convert(String luceneDir, String destPath, String destPrefix) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (DirectoryReader reader = DirectoryReader.open(
+                LuceneIndexFactory.openDirectory(Paths.get(luceneDir), Collections.emptyMap()))) {
+            final List<LeafReaderContext> leaves = reader.leaves();
+            final FieldInfo fi = leaves.get(0).reader().getFieldInfos().fieldInfo(LuceneIndex.DEFAULT_FIELD);
+            final boolean direct = fi != null && fi.hasVectors();
+            long postings = 0;
+            for (LeafReaderContext lrc : leaves)
+                postings += lrc.reader().getSumDocFreq(LuceneIndex.DEFAULT_FIELD);
+            System.err.println("Converting " + leaves.size() + " segments, " + reader.maxDoc() + " documents, "
+                    + postings + " postings, " + (direct ? "with" : "without") + " direct index, using " + threads + " threads");
+            final long start = System.currentTimeMillis();
+
+            // segment indices, and the merged indices of each round, are written next to the destination
+            final Path tmp = Files.createTempDirectory(Paths.get(destPath), "convert");
+            List<Future<String>> written = new ArrayList<>();
+            for (int i = 0; i < leaves.size(); i++) {
+                final LeafReader lr = leaves.get(i).reader();
+                final String loc = luceneDir + "#" + i;
+                final String prefix = leaves.size() == 1 ? destPrefix : "segment" + i;
+                final String path = leaves.size() == 1 ? destPath : tmp.toString();
+                written.add(pool.submit(() -> {
+                    // the segments are closed with the DirectoryReader, not by their LuceneIndex
+                    LuceneIndex segment = direct ? new DirectLuceneIndex(lr, loc) : new LuceneIndex(lr, loc);
+                    DiskIndexWriter writer = new DiskIndexWriter(path, prefix);
+                    if (direct)
+                        writer = writer.withDirect();
+                    writer.write(segment).close();
+                    return prefix;
+                }));
+            }
+            List<String> prefixes = get(written);
+            final long converted = System.currentTimeMillis();
+            report("Wrote segments", postings, converted - start);
+
+            int round = 0;
+            while (prefixes.size() > 1) {
+                final boolean last = prefixes.size() == 2;
+                List<Future<String>> merged = new ArrayList<>();
+                for (int j = 0; j < prefixes.size(); j += 2) {
+                    if (j + 1 == prefixes.size()) {
+                        // an odd one out waits for the next round
+                        final String odd = prefixes.get(j);
+                        merged.add(pool.submit(() -> odd));
+                        continue;
+                    }
+                    final String prefix1 = prefixes.get(j);
+                    final String prefix2 = prefixes.get(j + 1);
+                    final String destination = last ? destPrefix : "merged" + round + "_" + j;
+                    final String path = last ? destPath : tmp.toString();
+                    merged.add(pool.submit(() -> {
+                        merge(tmp.toString(), prefix1, prefix2, path, destination);
+                        return destination;
+                    }));
+                }
+                prefixes = get(merged);
+                round++;
+            }
+            Files.deleteIfExists(tmp);
+            final long end = System.currentTimeMillis();
+            if (round > 0)
+                report("Merged segments in " + round + " rounds", postings, end - converted);
+            report("Converted", postings, end - start);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** merges two indices from srcPath, deleting them afterwards */
+    static void merge(String srcPath, String prefix1, String prefix2, String destPath, String destPrefix) throws IOException {
+        IndexOnDisk src1 = IndexOnDisk.createIndex(srcPath, prefix1);
+        IndexOnDisk src2 = IndexOnDisk.createIndex(srcPath, prefix2);
+        IndexOnDisk dest = IndexOnDisk.createNewIndex(destPath, destPrefix);
+        new StructureMerger(src1, src2, dest).mergeStructures();
+        dest.close();
+        src1.close();
+        src2.close();
+        IndexUtil.deleteIndex(srcPath, prefix1);
+        IndexUtil.deleteIndex(srcPath, prefix2);
+    }
+
+    static <T> List<T> get(List<Future<T>> futures) throws IOException {
+        List<T> rtr = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> f : futures)
+                rtr.add(f.get());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            throw new IOException(ee.getCause());
+        }
+        return rtr;
+    }
+
+    static void report(String stage, long postings, long millis) {
+        System.err.println(String.format("%s in %.1fs, %.0f postings/sec", stage, millis / 1000d,
+                postings / Math.max(millis / 1000d, 0.001d)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("threads", true, "number of concurrent workers (default: number of processors)");
+        options.addOption("prefix", true, "prefix of the Terrier index (default data)");
+        CommandLine line = new DefaultParser().parse(options, args);
+        if (line.getArgs().length != 2) {
+            new HelpFormatter().printHelp("LuceneIndexConverter [options] luceneindex terrierindex", options);
+            System.exit(1);
+        }
+        int threads = Integer.parseInt(line.getOptionValue("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        Files.createDirectories(Paths.get(line.getArgs()[1]));
+        new LuceneIndexConverter(threads).convert(line.getArgs()[0], line.getArgs()[1], line.getOptionValue("prefix", "data"));
+    }
+}
@@ -1,22 +1,30 @@
 package org.terrier.lucene;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.ImmutableMap;
 
-import org.apache.lucene.index.CompositeReader;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.terrier.querying.IndexRef;
-import org.terrier.realtime.multi.MultiIndex;
 import org.terrier.structures.Index;
 import org.terrier.structures.Index.DirectIndexRef;
 import org.terrier.structures.IndexFactory.IndexLoader;
+import org.terrier.utility.ApplicationSetup;
 
 public class LuceneIndexFactory implements IndexLoader {
 
@@ -31,7 +39,7 @@ public class LuceneIndexFactory implements IndexLoader {
     public boolean supports(IndexRef ref) {
         if (ref instanceof DirectIndexRef) {
             DirectIndexRef dref = (DirectIndexRef) ref;
-            return dref.getIndex() instanceof LuceneIndex;
+            return dref.getIndex() instanceof LuceneIndex || dref.getIndex() instanceof CompositeLuceneIndex;
         }
         boolean rtr = PREFIX2IMPL.keySet().stream().anyMatch(p -> ref.toString().startsWith(p));
         // System.err.println("ref supported by " + this.getClass() + " " + rtr);
@@ -44,7 +52,16 @@ public class LuceneIndexFactory implements IndexLoader {
             Map.Entry<String, Class<? extends LuceneIndex>> selKVEntry = PREFIX2IMPL.entrySet().stream()
                     .filter(kv -> ref.toString().startsWith(kv.getKey())).findFirst().get();
             String dirname = ref.toString().replace(selKVEntry.getKey(), "").replaceAll("#.*$", "");
-            return loadLuceneIndex(dirname, selKVEntry.getKey(), selKVEntry.getValue());
+            Map<String, String> options = new HashMap<>();
+            int q = dirname.indexOf('?');
+            if (q != -1) {
+                for (String kv : dirname.substring(q + 1).split("&")) {
+                    String[] parts = kv.split("=", 2);
+                    options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+                }
+                dirname = dirname.substring(0, q);
+            }
+            return loadLuceneIndex(dirname, selKVEntry.getValue(), options);
         } catch (Exception e) {
             System.err.println("Could not loadLuceneIndex: " + e);
             e.printStackTrace();
@@ -54,38 +71,75 @@ public class LuceneIndexFactory implements IndexLoader {
 
     @Override
     public Class<? extends Index> indexImplementor(IndexRef ref) {
-        return MultiIndex.class;
+        // single segment indices are LuceneIndex, others are CompositeLuceneIndex
+        return Index.class;
+    }
+
+    /** Returns the value of an option given in the index ref, or else of the corresponding property */
+    static String option(Map<String, String> options, String name, String property, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : ApplicationSetup.getProperty(property, defaultValue);
     }
 
-    static Index loadLuceneIndex(String dirname, String prefix, Class<? extends LuceneIndex> clz) throws Exception {
-        SimpleFSDirectory dir = new SimpleFSDirectory(Paths.get(dirname));
-        CompositeReader cir = DirectoryReader.open(dir);
-        List<LuceneIndex> indices = new ArrayList<>();
-        boolean blocks = cir.leaves().get(0).reader().getFieldInfos().hasProx();
-        int i = 0;
-        for (LeafReaderContext lrc : cir.leaves()) {
-            LeafReader lr = lrc.reader();
-            String loc = dirname + "#" + String.valueOf(i);
-            indices.add(clz.getConstructor(LeafReader.class, String.class).newInstance(lr, loc));
-            // equiv to new LuceneIndex(lr));
-            i++;
+    /** Opens the Lucene Directory, of the type given by the "directory" option of the index ref, 
+     * or by the lucene.directory property. MMapDirectory is the default, as it is the fastest 
+     * under concurrent access. If the "preload" option or lucene.directory.preload property is set, 
+     * files with the extensions listed in lucene.directory.preload.extensions (by default: postings, 
+     * terms dictionary and norms) are read once, such that they are in the page cache before the
+     * first query. */
+    static FSDirectory openDirectory(Path path, Map<String, String> options) throws IOException {
+        String type = option(options, "directory", "lucene.directory", "mmap");
+        FSDirectory dir;
+        switch (type.toLowerCase()) {
+        case "mmap":
+            dir = new MMapDirectory(path);
+            break;
+        case "nio":
+            dir = new NIOFSDirectory(path);
+            break;
+        case "simple":
+            dir = new SimpleFSDirectory(path);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown Lucene directory type " + type + ", expected one of mmap, nio, simple");
         }
-        System.err.println("Lucene index has " + indices.size() + " segments (leaves)");
-        if (indices.size() > 1) {
-            
-            System.err.println("using multiindex");
-            if (clz.equals(DirectLuceneIndex.class)) {
-                throw new UnsupportedOperationException(
-                        "Direct indices of multi-segment indices are not yet supported");
+        if (Boolean.parseBoolean(option(options, "preload", "lucene.directory.preload", "false"))) {
+            Set<String> extensions = new HashSet<>(Arrays.asList(
+                    ApplicationSetup.getProperty("lucene.directory.preload.extensions", "doc,pos,tim,tip,nvd").split("\\s*,\\s*")));
+            preload(path, extensions);
+        }
+        return dir;
+    }
+
+    static void preload(Path path, Set<String> extensions) throws IOException {
+        final byte[] buffer = new byte[1 << 20];
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                if (dot == -1 || !extensions.contains(name.substring(dot + 1)))
+                    continue;
+                try (InputStream is = Files.newInputStream(f)) {
+                    int read;
+                    while ((read = is.read(buffer)) != -1)
+                        bytes += read;
+                }
             }
-            return new MultiIndex(indices.toArray(new Index[0]), blocks, false) {
-                @Override
-                public String toString() {
-                    return prefix + dirname;
-                }                
-            };
         }
-        return indices.get(0);
+        System.err.println("Preloaded " + bytes + " bytes of Lucene index files into the page cache");
+    }
+
+    static Index loadLuceneIndex(String dirname, Class<? extends LuceneIndex> clz, Map<String, String> options) throws Exception {
+        FSDirectory dir = openDirectory(Paths.get(dirname), options);
+        DirectoryReader cir = DirectoryReader.open(dir);
+        System.err.println("Lucene index has " + cir.leaves().size() + " segments (leaves)");
+        if (cir.leaves().size() > 1) {
+            return new CompositeLuceneIndex(cir, dirname, clz.equals(DirectLuceneIndex.class));
+        }
+        LeafReader lr = cir.leaves().get(0).reader();
+        return clz.getConstructor(LeafReader.class, String.class).newInstance(lr, dirname + "#0");
+        // equiv to new LuceneIndex(lr));
     } 
 
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.ReferenceManager;
+
+/** Serves a Lucene index that is updated while Terrier is running, e.g. by a separate
+ * indexer. Each call to maybeRefresh() reopens the DirectoryReader if the index has changed
+ * (using DirectoryReader.openIfChanged), and atomically swaps in a new Index over it.
+ * Segments that have not changed keep their LuceneIndex, and so its norms and other cached
+ * structures, such that a refresh only does work for new or changed segments.
+ * <p>
+ * Queries should acquire() an Index, use it (e.g. through a Manager made from its IndexRef),
+ * and release() it, such that each query sees one consistent snapshot of the index. Readers
+ * of old snapshots are closed once they have been released by their last query:
+ * <pre>
+ * CompositeLuceneIndex index = manager.acquire();
+ * try {
+ *     Manager m = ManagerFactory._from_(index.getIndexRef());
+ *     ...
+ * } finally {
+ *     manager.release(index);
+ * }
+ * </pre>
+ * maybeRefresh() is typically called periodically by a background thread.
+ */
+public class LuceneIndexManager extends ReferenceManager<CompositeLuceneIndex> {
+
+    final String loc;
+    final boolean direct;
+
+    /** Opens the Lucene index in the specified directory. If direct is set, the snapshots have direct indices. */
+    public LuceneIndexManager(String dirname, boolean direct) throws IOException {
+        this(DirectoryReader.open(LuceneIndexFactory.openDirectory(Paths.get(dirname), Collections.emptyMap())),
+            dirname, direct);
+    }
+
+    /** Serves the specified reader and its reopened successors, e.g. a near-real-time reader
+     * from DirectoryReader.open(IndexWriter). The reader is closed by the manager. */
+    public LuceneIndexManager(DirectoryReader reader, String _loc, boolean _direct) throws IOException {
+        this.loc = _loc;
+        this.direct = _direct;
+        this.current = new CompositeLuceneIndex(reader, loc, direct);
+    }
+
+    static DirectoryReader readerOf(CompositeLuceneIndex index) {
+        return (DirectoryReader) index.reader;
+    }
+
+    @Override
+    protected CompositeLuceneIndex refreshIfNeeded(CompositeLuceneIndex referenceToRefresh) throws IOException {
+        final DirectoryReader reader = DirectoryReader.openIfChanged(readerOf(referenceToRefresh));
+        if (reader == null)
+            return null;
+        System.err.println("Lucene index has changed, now " + reader.leaves().size() + " segments (leaves)");
+        final CompositeLuceneIndex refreshed;
+        try {
+            refreshed = new CompositeLuceneIndex(reader, loc, direct, referenceToRefresh);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        deleteRetiredSidecars(referenceToRefresh, refreshed);
+        return refreshed;
+    }
+
+    /** Deletes the sidecar files of the segments of the previous snapshot that are not in the
+     * refreshed one, i.e. that were merged away or dropped, as Lucene only deletes its own files.
+     * Queries still running on older snapshots keep the files that they have already opened. */
+    static void deleteRetiredSidecars(CompositeLuceneIndex previous, CompositeLuceneIndex refreshed) {
+        try {
+            final Set<String> live = new HashSet<>();
+            for (LuceneIndex leaf : refreshed.leaves)
+                live.add(SidecarFile.segmentReader(leaf.ir).getSegmentName());
+            for (LuceneIndex leaf : previous.leaves)
+                if (! live.contains(SidecarFile.segmentReader(leaf.ir).getSegmentName()))
+                    SidecarFile.deleteAll(leaf.ir);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Could not delete sidecar files of retired segments: " + e);
+        }
+    }
+
+    @Override
+    protected boolean tryIncRef(CompositeLuceneIndex reference) throws IOException {
+        return readerOf(reference).tryIncRef();
+    }
+
+    @Override
+    protected void decRef(CompositeLuceneIndex reference) throws IOException {
+        readerOf(reference).decRef();
+    }
+
+    @Override
+    protected int getRefCount(CompositeLuceneIndex reference) {
+        return readerOf(reference).getRefCount();
+    }
+}
@@ -0,0 +1,435 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.terrier.utility.ApplicationSetup;
+
+/** MetaIndex for one segment of a Lucene index. The docno of each document is the "id"
+ * field. Docnos are obtained from (in order of preference):
+ * <ol>
+ * <li>the sorted or binary doc values of the "id" field, if the index has them;</li>
+ * <li>a front-coded DocnoTable sidecar file, built on first use;</li>
+ * <li>the stored fields, which requires decompressing a block of documents for each docno.</li>
+ * </ol>
+ * The <tt>lucene.docnos</tt> property can force one of <tt>docvalues</tt>, <tt>table</tt> or
+ * <tt>stored</tt>; by default (<tt>auto</tt>) the first available is used.
+ * <p>
+ * Documents are looked up by the value of a key using the postings of the corresponding
+ * field, if it is indexed (as the "id" field usually is). Otherwise docnos are looked up
+ * by binary search of a DocnoOrder sidecar file.
+ * <p>
+ * Any stored field can be obtained as a meta key of the same name; those listed in the 
+ * <tt>lucene.meta.keys</tt> property (default <tt>docno</tt>) are reported by getKeys().
+ * Batches of documents are read from the stored fields in increasing docid order, such that
+ * each compressed block of documents is decoded once, and only the requested fields are kept.
+ */
+class LuceneMetaIndex implements BatchMetaIndex {
+
+    enum DocnoSource { DOCVALUES, TABLE, STORED }
+
+    final LeafReader ir;
+    final String docnoField;
+    final String[] keys = ApplicationSetup.getProperty("lucene.meta.keys", "docno").split("\\s*,\\s*");
+    /** these are set at most once after construction, by getTable() and getOrder() */
+    volatile DocnoSource source;
+    volatile DocnoTable table;
+    volatile DocnoOrder order;
+    /** cursors over the docno table, which are not thread-safe, so one per thread */
+    final CloseableThreadLocal<DocnoTable.Reader> tableReaders = new CloseableThreadLocal<>();
+
+    LuceneMetaIndex(LeafReader _ir, String _docnoField) {
+        this.ir = _ir;
+        this.docnoField = _docnoField;
+        final FieldInfo fi = ir.getFieldInfos().fieldInfo(docnoField);
+        final boolean hasDocValues = fi != null
+                && (fi.getDocValuesType() == DocValuesType.SORTED || fi.getDocValuesType() == DocValuesType.BINARY);
+        final String mode = ApplicationSetup.getProperty("lucene.docnos", "auto");
+        switch (mode) {
+        case "auto":
+            source = hasDocValues ? DocnoSource.DOCVALUES : DocnoSource.TABLE;
+            break;
+        case "docvalues":
+            if (!hasDocValues)
+                throw new IllegalArgumentException("Field " + docnoField + " does not have sorted or binary doc values");
+            source = DocnoSource.DOCVALUES;
+            break;
+        case "table":
+            source = DocnoSource.TABLE;
+            break;
+        case "stored":
+            source = DocnoSource.STORED;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown lucene.docnos " + mode + ", expected one of auto, docvalues, table, stored");
+        }
+    }
+
+    /** Returns the docno table, building it if necessary. If the table cannot be built (e.g. the
+     * index directory is read-only), docnos are obtained from the stored fields instead. Once
+     * the table is loaded, this takes no lock; the lock only ensures that it is built once. */
+    DocnoTable getTable() {
+        final DocnoTable t = table;
+        if (t != null || source != DocnoSource.TABLE)
+            return t;
+        synchronized (this) {
+            if (table == null && source == DocnoSource.TABLE) {
+                try {
+                    table = DocnoTable.load(ir, docnoField);
+                } catch (IOException | UnsupportedOperationException e) {
+                    System.err.println("Could not build docno table, docnos will be read from stored fields: " + e);
+                    source = DocnoSource.STORED;
+                }
+            }
+            return table;
+        }
+    }
+
+    /** as getTable(), for the docno order */
+    DocnoOrder getOrder() throws IOException {
+        final DocnoOrder o = order;
+        if (o != null)
+            return o;
+        synchronized (this) {
+            if (order == null)
+                order = DocnoOrder.load(ir, this);
+            return order;
+        }
+    }
+
+    DocnoSource getSource() {
+        getTable();
+        return source;
+    }
+
+    /** Collects the values of some stored fields of a document */
+    static class FieldsVisitor extends StoredFieldVisitor {
+        final String[] fields;
+        final String[] values;
+        int found;
+
+        FieldsVisitor(String[] _fields) {
+            fields = _fields;
+            values = new String[fields.length];
+        }
+
+        void reset() {
+            Arrays.fill(values, null);
+            found = 0;
+        }
+
+        int indexOf(String field) {
+            for (int i = 0; i < fields.length; i++)
+                if (fields[i].equals(field))
+                    return i;
+            return -1;
+        }
+
+        void set(FieldInfo fieldInfo, String value) {
+            final int i = indexOf(fieldInfo.name);
+            if (values[i] == null)
+                found++;
+            values[i] = value;
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (found == fields.length)
+                return Status.STOP;
+            final int i = indexOf(fieldInfo.name);
+            return i != -1 && values[i] == null ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, byte[] value) {
+            set(fieldInfo, new String(value, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) {
+            set(fieldInfo, new String(value, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void intField(FieldInfo fieldInfo, int value) {
+            set(fieldInfo, String.valueOf(value));
+        }
+
+        @Override
+        public void longField(FieldInfo fieldInfo, long value) {
+            set(fieldInfo, String.valueOf(value));
+        }
+
+        @Override
+        public void floatField(FieldInfo fieldInfo, float value) {
+            set(fieldInfo, String.valueOf(value));
+        }
+
+        @Override
+        public void doubleField(FieldInfo fieldInfo, double value) {
+            set(fieldInfo, String.valueOf(value));
+        }
+    }
+
+    /** Returns a stored fields reader for visiting documents in increasing docid order. The 
+     * merge instance of the codec's reader keeps the last decompressed block, such that documents
+     * from the same block are decoded once. Null if the segment is not read through a codec. */
+    static StoredFieldsReader sequentialFieldsReader(LeafReader ir) {
+        final LeafReader unwrapped = FilterLeafReader.unwrap(ir);
+        if (unwrapped instanceof CodecReader)
+            return ((CodecReader) unwrapped).getFieldsReader().getMergeInstance();
+        return null;
+    }
+
+    /** Returns the values of the stored fields of the documents, indexed [document][field] */
+    String[][] getStoredFields(String[] fields, int[] docids) throws IOException {
+        final String[][] rtr = new String[docids.length][];
+        final FieldsVisitor visitor = new FieldsVisitor(fields);
+        if (docids.length == 1) {
+            ir.document(docids[0], visitor);
+            rtr[0] = visitor.values.clone();
+            return rtr;
+        }
+        final StoredFieldsReader reader = sequentialFieldsReader(ir);
+        for (long o : sortedOrder(docids)) {
+            final int i = (int) o;
+            visitor.reset();
+            if (reader != null)
+                reader.visitDocument(docids[i], visitor);
+            else
+                ir.document(docids[i], visitor);
+            rtr[i] = visitor.values.clone();
+        }
+        return rtr;
+    }
+
+    BinaryDocValues docValues() throws IOException {
+        return ir.getFieldInfos().fieldInfo(docnoField).getDocValuesType() == DocValuesType.SORTED
+            ? ir.getSortedDocValues(docnoField)
+            : ir.getBinaryDocValues(docnoField);
+    }
+
+    String getDocno(int docid) throws IOException {
+        final DocnoTable t = getTable();
+        switch (getSource()) {
+        case DOCVALUES:
+            BinaryDocValues dv = docValues();
+            return dv.advanceExact(docid) ? dv.binaryValue().utf8ToString() : null;
+        case TABLE:
+            return tableReader(t).getString(docid);
+        default:
+            return getStoredFields(new String[] { docnoField }, new int[] { docid })[0][0];
+        }
+    }
+
+    /** returns this thread's cursor over the docno table, which continues decoding within a
+     * block when docnos are obtained in increasing docid order */
+    DocnoTable.Reader tableReader(DocnoTable t) {
+        DocnoTable.Reader reader = tableReaders.get();
+        if (reader == null) {
+            reader = t.new Reader();
+            tableReaders.set(reader);
+        }
+        return reader;
+    }
+
+    /** Returns the docnos of the documents, looked up in increasing docid order */
+    String[] getDocnos(int[] docids) throws IOException {
+        final String[] rtr = new String[docids.length];
+        final DocnoTable t = getTable();
+        if (getSource() == DocnoSource.STORED) {
+            final String[][] stored = getStoredFields(new String[] { docnoField }, docids);
+            for (int i = 0; i < docids.length; i++)
+                rtr[i] = stored[i][0];
+            return rtr;
+        }
+        final long[] order = sortedOrder(docids);
+        if (source == DocnoSource.TABLE) {
+            final DocnoTable.Reader reader = t.new Reader();
+            for (long o : order) {
+                final int i = (int) o;
+                rtr[i] = reader.getString(docids[i]);
+            }
+            return rtr;
+        }
+        final BinaryDocValues dv = docValues();
+        for (long o : order) {
+            final int i = (int) o;
+            rtr[i] = dv.advanceExact(docids[i]) ? dv.binaryValue().utf8ToString() : null;
+        }
+        return rtr;
+    }
+
+    /** Returns the positions of the docids in increasing docid order, each packed into the
+     * low bits of a long whose high bits are the docid, so that no boxing is needed to sort */
+    static long[] sortedOrder(int[] docids) {
+        final long[] order = new long[docids.length];
+        for (int i = 0; i < docids.length; i++)
+            order[i] = ((long) docids[i] << 32) | i;
+        Arrays.sort(order);
+        return order;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // of every thread, not only this one
+        tableReaders.close();
+    }
+
+    @Override
+    public String[] getKeys() {
+        return keys;
+    }
+
+    /** Docnos are served by getDocnos(), unless they come from the stored fields, in which case
+     * they are read with the other keys. Returns values indexed [document][key]. */
+    @Override
+    public String[][] getItems(String[] keys, int[] docids) throws IOException {
+        final String[][] columns = new String[keys.length][];
+        final List<String> fields = new ArrayList<>();
+        final int[] fieldOfKey = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            if (keys[k].equals("docno") && getSource() != DocnoSource.STORED) {
+                columns[k] = getDocnos(docids);
+                fieldOfKey[k] = -1;
+                continue;
+            }
+            final String field = fieldOf(keys[k]);
+            int f = fields.indexOf(field);
+            if (f == -1) {
+                f = fields.size();
+                fields.add(field);
+            }
+            fieldOfKey[k] = f;
+        }
+        final String[][] stored = fields.isEmpty()
+            ? null
+            : getStoredFields(fields.toArray(new String[fields.size()]), docids);
+        final String[][] rtr = new String[docids.length][keys.length];
+        for (int i = 0; i < docids.length; i++)
+            for (int k = 0; k < keys.length; k++)
+                rtr[i][k] = fieldOfKey[k] == -1 ? columns[k][i] : stored[i][fieldOfKey[k]];
+        return rtr;
+    }
+
+    @Override
+    public String[] getItems(String[] keys, int docid) throws IOException {
+        return getItems(keys, new int[] { docid })[0];
+    }
+
+    @Override
+    public String[] getItems(String key, int[] docids) throws IOException {
+        if (key.equals("docno"))
+            return getDocnos(docids);
+        final String[][] stored = getStoredFields(new String[] { key }, docids);
+        final String[] rtr = new String[docids.length];
+        for (int i = 0; i < docids.length; i++)
+            rtr[i] = stored[i][0];
+        return rtr;
+    }
+
+    @Override
+    public String getItem(String key, int docid) throws IOException {
+        if (key.equals("docno"))
+            return getDocno(docid);
+        return getStoredFields(new String[] { key }, new int[] { docid })[0][0];
+    }
+
+    String fieldOf(String key) {
+        return key.equals("docno") ? docnoField : key;
+    }
+
+    boolean isIndexed(String field) {
+        final FieldInfo fi = ir.getFieldInfos().fieldInfo(field);
+        return fi != null && fi.getIndexOptions() != IndexOptions.NONE;
+    }
+
+    @Override
+    public int getDocument(String key, String value) throws IOException {
+        return getDocuments(key, new String[] { value })[0];
+    }
+
+    /** Resolves the values in term order, such that the terms dictionary is only traversed
+     * forwards, and one PostingsEnum is reused. Values of unindexed fields other than the
+     * docno cannot be looked up, and are reported as not found. */
+    @Override
+    public int[] getDocuments(String key, String[] values) throws IOException {
+        final int[] rtr = new int[values.length];
+        Arrays.fill(rtr, -1);
+        final String field = fieldOf(key);
+        final Bits liveDocs = ir.getLiveDocs();
+        if (isIndexed(field)) {
+            final Terms terms = ir.terms(field);
+            if (terms == null)
+                return rtr;
+            final BytesRef[] bytes = new BytesRef[values.length];
+            final int[] sorted = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                bytes[i] = new BytesRef(values[i]);
+                sorted[i] = i;
+            }
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return bytes[sorted[i]].compareTo(bytes[sorted[j]]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    int tmp = sorted[i];
+                    sorted[i] = sorted[j];
+                    sorted[j] = tmp;
+                }
+            }.sort(0, sorted.length);
+            final TermsEnum te = terms.iterator();
+            PostingsEnum pe = null;
+            for (int i : sorted) {
+                if (!te.seekExact(bytes[i]))
+                    continue;
+                pe = te.postings(pe, PostingsEnum.NONE);
+                int docid;
+                while ((docid = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (liveDocs == null || liveDocs.get(docid)) {
+                        rtr[i] = docid;
+                        break;
+                    }
+                }
+            }
+        } else if (field.equals(docnoField)) {
+            final DocnoOrder o = getOrder();
+            for (int i = 0; i < values.length; i++)
+                rtr[i] = o.lookup(values[i], liveDocs);
+        }
+        return rtr;
+    }
+
+    @Override
+    public String[] getAllItems(int docid) throws IOException {
+        return getItems(keys, docid);
+    }
+
+    @Override
+    public int size() {
+        return ir.maxDoc();
+    }
+}
@@ -0,0 +1,18 @@
+package org.terrier.lucene;
+
+/** A posting list whose document lengths are Lucene's one-byte norms, which have only 256
+ * possible values. Weighting models can therefore precompute their length normalisation
+ * for each norm once per query term, and look it up per posting, rather than decoding the
+ * norm and dividing by the average document length, as done by LuceneBM25. */
+public interface NormPosting {
+
+    /** Returns the norm (0-255) of the current posting, such that its document length is
+     * length(getNorm()), or -1 if document lengths are not decoded from the norms
+     * (e.g. with <tt>lucene.doclens.exact</tt>). */
+    int getNorm();
+
+    /** the length of a document with the specified norm, as encoded by BM25Similarity */
+    static int length(int norm) {
+        return LuceneIndex.NORM_TABLE[norm];
+    }
+}
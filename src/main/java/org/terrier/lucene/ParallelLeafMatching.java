@@ -0,0 +1,359 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.terrier.lucene.CompositeLuceneIndex.CompositeLexiconEntry;
+import org.terrier.lucene.CompositeLuceneIndex.FieldCompositeLexiconEntry;
+import org.terrier.lucene.LuceneIndex.FieldLuceneLexiconEntry;
+import org.terrier.lucene.LuceneIndex.LuceneLexiconEntry;
+import org.terrier.matching.Matching;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.QueryResultSet;
+import org.terrier.matching.ResultSet;
+import org.terrier.matching.daat.Full;
+import org.terrier.querying.IndexRef;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.PostingIndex;
+import org.terrier.utility.ApplicationSetup;
+
+/** Matches a query against each segment of a CompositeLuceneIndex concurrently, and merges
+ * the top-ranked documents of each segment. Each segment is matched by a DAAT Full matching
+ * over a view of that segment which reports the statistics of the whole index, so that
+ * scores are identical to those obtained by matching the composite index on one thread.
+ * Lexicon entries are looked up once per query term, and shared by the segments.
+ * For indices other than CompositeLuceneIndex, this behaves as Full.
+ * <p>
+ * To use, set <tt>trec.matching=org.terrier.lucene.ParallelLeafMatching</tt>. The number of
+ * threads shared by all queries is set by <tt>lucene.matching.threads</tt>, which defaults to
+ * the number of available processors.
+ */
+public class ParallelLeafMatching implements Matching {
+
+    /** holds the pool shared by all queries, which is created when first used, without locking */
+    static class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Integer.parseInt(ApplicationSetup.getProperty(
+                "lucene.matching.threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    }
+
+    static ForkJoinPool getPool() {
+        return PoolHolder.POOL;
+    }
+
+    final Index index;
+    CollectionStatistics collectionStatistics;
+
+    public ParallelLeafMatching(Index _index) {
+        this.index = _index;
+    }
+
+    public void setCollectionStatistics(CollectionStatistics cs) {
+        this.collectionStatistics = cs;
+    }
+
+    @Override
+    public String getInfo() {
+        return "ParallelLeafMatching";
+    }
+
+    @Override
+    public ResultSet match(String queryNumber, MatchingQueryTerms queryTerms) throws IOException {
+        if (!(index instanceof CompositeLuceneIndex))
+            return new Full(index).match(queryNumber, queryTerms);
+        final CompositeLuceneIndex composite = (CompositeLuceneIndex) index;
+        final CollectionStatistics cs = collectionStatistics != null
+            ? collectionStatistics
+            : composite.getCollectionStatistics();
+        final Lexicon<String> lexicon = composite.getLexicon();
+        final ConcurrentHashMap<String, Optional<CompositeLexiconEntry>> entries = new ConcurrentHashMap<>();
+
+        List<Future<ResultSet>> futures = new ArrayList<>(composite.leaves.length);
+        for (int i = 0; i < composite.leaves.length; i++) {
+            final LeafView view = new LeafView(composite, i, cs, lexicon, entries);
+            final MatchingQueryTerms leafQueryTerms = (MatchingQueryTerms) queryTerms.clone();
+            futures.add(getPool().submit(() -> new Full(view).match(queryNumber, leafQueryTerms)));
+        }
+        ResultSet[] results = new ResultSet[futures.size()];
+        try {
+            for (int i = 0; i < results.length; i++)
+                results[i] = futures.get(i).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            throw new IOException(ee.getCause());
+        }
+        int k = Integer.parseInt(ApplicationSetup.getProperty("matching.retrieved_set_size", "1000"));
+        return merge(results, composite.docBases, k);
+    }
+
+    /** Merges the results of each segment, keeping the k highest scored documents, ties
+     * broken by docid. Docids are offset by the docBase of their segment. The results of
+     * each segment are sorted by score, so they are merged by a heap over the segments,
+     * which stops after k results. */
+    static ResultSet merge(ResultSet[] results, int[] docBases, int k) {
+        int total = 0;
+        int exact = 0;
+        for (ResultSet rs : results) {
+            total += rs.getResultSize();
+            exact += rs.getExactResultSize();
+        }
+        final int size = Math.min(k, total);
+        final int[] rtrDocids = new int[size];
+        final double[] rtrScores = new double[size];
+        final short[] rtrOccurrences = new short[size];
+        final MergeHeap heap = new MergeHeap(results, docBases);
+        for (int i = 0; i < size; i++) {
+            final int l = heap.top();
+            final int pos = heap.positions[l];
+            rtrDocids[i] = docBases[l] + heap.docids[l][pos];
+            rtrScores[i] = heap.scores[l][pos];
+            rtrOccurrences[i] = results[l].getOccurrences()[pos];
+            heap.advanceTop();
+        }
+        ResultSet rtr = new QueryResultSet(rtrDocids, rtrScores, rtrOccurrences);
+        rtr.setExactResultSize(exact);
+        return rtr;
+    }
+
+    /** A heap of the segments that have results left, ordered by their next result */
+    static class MergeHeap {
+        final int[][] docids;
+        final double[][] scores;
+        final int[] sizes;
+        final int[] docBases;
+        /** the next result of each segment */
+        final int[] positions;
+        final int[] heap;
+        int heapSize = 0;
+
+        MergeHeap(ResultSet[] results, int[] _docBases) {
+            docBases = _docBases;
+            docids = new int[results.length][];
+            scores = new double[results.length][];
+            sizes = new int[results.length];
+            positions = new int[results.length];
+            heap = new int[results.length];
+            for (int l = 0; l < results.length; l++) {
+                docids[l] = results[l].getDocids();
+                scores[l] = results[l].getScores();
+                sizes[l] = results[l].getResultSize();
+                if (sizes[l] > 0)
+                    heap[heapSize++] = l;
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        }
+
+        /** the segment with the highest scored next result */
+        int top() {
+            return heap[0];
+        }
+
+        /** moves the top segment past its next result */
+        void advanceTop() {
+            final int l = heap[0];
+            if (++positions[l] == sizes[l])
+                heap[0] = heap[--heapSize];
+            siftDown(0);
+        }
+
+        /** whether the next result of segment a ranks before that of segment b */
+        boolean before(int a, int b) {
+            final int cmp = Double.compare(scores[a][positions[a]], scores[b][positions[b]]);
+            if (cmp != 0)
+                return cmp > 0;
+            return docBases[a] + docids[a][positions[a]] < docBases[b] + docids[b][positions[b]];
+        }
+
+        void siftDown(int i) {
+            final int l = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize)
+                    break;
+                if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+                    child++;
+                if (! before(heap[child], l))
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = l;
+        }
+    }
+
+    /** A segment of a CompositeLuceneIndex, but whose lexicon and collection statistics are
+     * those of the whole index. Lexicon entries are shared between the views of a query. */
+    static class LeafView extends Index {
+        final CompositeLuceneIndex composite;
+        final int leaf;
+        final LuceneIndex index;
+        final CollectionStatistics cs;
+        final Lexicon<String> compositeLexicon;
+        final ConcurrentHashMap<String, Optional<CompositeLexiconEntry>> entries;
+        final Lexicon<String> lexicon;
+
+        LeafView(CompositeLuceneIndex _composite, int _leaf, CollectionStatistics _cs,
+                Lexicon<String> _compositeLexicon,
+                ConcurrentHashMap<String, Optional<CompositeLexiconEntry>> _entries) {
+            composite = _composite;
+            leaf = _leaf;
+            index = composite.leaves[leaf];
+            cs = _cs;
+            compositeLexicon = _compositeLexicon;
+            entries = _entries;
+            lexicon = newLexicon();
+        }
+
+        /** returns the entry of the term in this segment, carrying the statistics of the whole index */
+        LexiconEntry getLexiconEntry(String term) {
+            CompositeLexiconEntry ce = entries.computeIfAbsent(term,
+                    t -> Optional.ofNullable((CompositeLexiconEntry) compositeLexicon.getLexiconEntry(t))).orElse(null);
+            if (ce == null || ce.leafEntries[leaf] == null)
+                return null;
+            final LuceneLexiconEntry local = ce.leafEntries[leaf];
+            final LuceneLexiconEntry le;
+            if (local instanceof FieldLuceneLexiconEntry) {
+                final FieldLuceneLexiconEntry fle = new FieldLuceneLexiconEntry(0);
+                fle.fieldStates = ((FieldLuceneLexiconEntry) local).fieldStates;
+                fle.fieldFrequencies = ((FieldCompositeLexiconEntry) ce).fieldFrequencies;
+                fle.fieldDocumentFrequencies = ((FieldCompositeLexiconEntry) ce).fieldDocumentFrequencies;
+                le = fle;
+            } else {
+                le = new LuceneLexiconEntry();
+            }
+            le.t = local.t;
+            le.termState = local.termState;
+            le.copyImpacts(local);
+            le.setStatistics(ce.getDocumentFrequency(), ce.getFrequency());
+            le.setTermId(ce.getTermId());
+            return le;
+        }
+
+        @Override
+        public Lexicon<String> getLexicon() {
+            return lexicon;
+        }
+
+        Lexicon<String> newLexicon() {
+            return new Lexicon<String>() {
+
+                @Override
+                public LexiconEntry getLexiconEntry(String term) {
+                    return LeafView.this.getLexiconEntry(term);
+                }
+
+                @Override
+                public Entry<String, LexiconEntry> getLexiconEntry(int termid) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Entry<String, LexiconEntry> getIthLexiconEntry(int index) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int numberOfEntries() {
+                    return cs.getNumberOfUniqueTerms();
+                }
+
+                @Override
+                public Iterator<Entry<String, LexiconEntry>> iterator() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Iterator<Entry<String, LexiconEntry>> getLexiconEntryRange(String from, String to) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() throws IOException {
+                }
+            };
+        }
+
+        @Override
+        public CollectionStatistics getCollectionStatistics() {
+            return cs;
+        }
+
+        @Override
+        public PostingIndex<?> getInvertedIndex() {
+            return composite.leafInverted[leaf];
+        }
+
+        @Override
+        public DocumentIndex getDocumentIndex() {
+            return composite.leafDocumentIndices[leaf];
+        }
+
+        @Override
+        public MetaIndex getMetaIndex() {
+            return composite.leafMetaIndices[leaf];
+        }
+
+        @Override
+        public PostingIndex<?> getDirectIndex() {
+            return null;
+        }
+
+        @Override
+        public Object getIndexStructure(String structureName) {
+            switch (structureName) {
+            case "lexicon":
+                return getLexicon();
+            case "document":
+                return getDocumentIndex();
+            case "inverted":
+                return getInvertedIndex();
+            case "meta":
+                return getMetaIndex();
+            default:
+                return null;
+            }
+        }
+
+        @Override
+        public Object getIndexStructureInputStream(String structureName) {
+            return null;
+        }
+
+        @Override
+        public boolean hasIndexStructure(String structureName) {
+            return index.hasIndexStructure(structureName) && !structureName.equals("direct");
+        }
+
+        @Override
+        public IndexRef getIndexRef() {
+            return Index.makeDirectIndexRef(this);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the segment belongs to the composite index
+        }
+
+        @Override
+        public String toString() {
+            return index.toString();
+        }
+    }
+}
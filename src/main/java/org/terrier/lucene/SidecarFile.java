@@ -0,0 +1,172 @@
+package org.terrier.lucene;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.StringHelper;
+import org.terrier.utility.ApplicationSetup;
+
+/** Files that we write alongside each segment of a Lucene index, to hold structures
+ * that Lucene does not record itself. Each file has a header recording the ID of the
+ * segment it was built from, so that stale files (e.g. from an index that has since
+ * been rebuilt in the same location) are detected and rebuilt. Files are written in
+ * the index directory, unless the <tt>lucene.sidecar.dir</tt> property is set. */
+class SidecarFile {
+
+    static final int MAGIC = 0x54524C53;
+    static final int HEADER_LENGTH = 8 + StringHelper.ID_LENGTH;
+
+    interface PayloadWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    static SegmentReader segmentReader(LeafReader lr) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(lr);
+        if (!(unwrapped instanceof SegmentReader))
+            throw new UnsupportedOperationException(
+                    "Sidecar files are only supported for segments, not " + unwrapped.getClass().getSimpleName());
+        return (SegmentReader) unwrapped;
+    }
+
+    static byte[] segmentId(LeafReader lr) {
+        return segmentReader(lr).getSegmentInfo().info.getId();
+    }
+
+    /** Returns the location of the sidecar file with the given extension for the given segment */
+    static Path path(LeafReader lr, String extension) {
+        SegmentReader sr = segmentReader(lr);
+        Path parent;
+        String dir = ApplicationSetup.getProperty("lucene.sidecar.dir", null);
+        if (dir != null) {
+            parent = Paths.get(dir);
+        } else {
+            Directory d = FilterDirectory.unwrap(sr.directory());
+            if (!(d instanceof FSDirectory))
+                throw new UnsupportedOperationException(
+                        "Cannot write sidecar files for a " + d.getClass().getSimpleName() + ", set lucene.sidecar.dir");
+            parent = ((FSDirectory) d).getDirectory();
+        }
+        return parent.resolve("terrier" + sr.getSegmentName() + "." + extension);
+    }
+
+    /** Maps the contents of a sidecar file, positioned after its header. Returns null if the
+     * file does not exist, or was built for another version or segment. */
+    static ByteBuffer map(Path p, LeafReader lr, int version) throws IOException {
+        if (!Files.exists(p))
+            return null;
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            if (fc.size() < HEADER_LENGTH)
+                return null;
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != version)
+                return null;
+            byte[] id = new byte[StringHelper.ID_LENGTH];
+            buf.get(id);
+            if (!Arrays.equals(id, segmentId(lr))) {
+                System.err.println("Sidecar file " + p + " is stale, it will be rebuilt");
+                return null;
+            }
+            return buf.slice();
+        }
+    }
+
+    /** As map(), but opens the contents of the file as a Lucene IndexInput, for files that may
+     * exceed the 2GB that a single ByteBuffer can map. The IndexInput is a slice positioned
+     * after the header, which may be cloned for each reader. */
+    static IndexInput open(Path p, LeafReader lr, int version) throws IOException {
+        if (!Files.exists(p))
+            return null;
+        final IndexInput in;
+        // the inputs of an MMapDirectory remain open after it is closed
+        try (Directory dir = new MMapDirectory(p.getParent())) {
+            in = dir.openInput(p.getFileName().toString(), IOContext.READ);
+        }
+        boolean valid = false;
+        try {
+            if (in.length() < HEADER_LENGTH || in.readInt() != MAGIC || in.readInt() != version)
+                return null;
+            byte[] id = new byte[StringHelper.ID_LENGTH];
+            in.readBytes(id, 0, id.length);
+            if (!Arrays.equals(id, segmentId(lr))) {
+                System.err.println("Sidecar file " + p + " is stale, it will be rebuilt");
+                return null;
+            }
+            valid = true;
+            return in.slice(p.getFileName().toString(), HEADER_LENGTH, in.length() - HEADER_LENGTH);
+        } finally {
+            if (!valid)
+                in.close();
+        }
+    }
+
+    /** Deletes the sidecar files of a segment, e.g. once it has been merged away. Only files
+     * whose header records this segment are deleted, as lucene.sidecar.dir may be shared by
+     * several indices, whose segments have the same names. Files still being written are kept. */
+    static void deleteAll(LeafReader lr) throws IOException {
+        final Path p = path(lr, "");
+        final byte[] id = segmentId(lr);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(p.getParent(), p.getFileName() + "*")) {
+            for (Path f : files) {
+                if (f.getFileName().toString().endsWith(".tmp"))
+                    continue;
+                if (isOf(f, id)) {
+                    System.err.println("Deleting sidecar file " + f + " of a retired segment");
+                    Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    /** whether the sidecar file was built from the segment with the specified ID, in any version */
+    static boolean isOf(Path p, byte[] id) throws IOException {
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            if (fc.size() < HEADER_LENGTH)
+                return false;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining() && fc.read(header) != -1)
+                ;
+            header.flip();
+            if (header.getInt() != MAGIC)
+                return false;
+            header.getInt();
+            final byte[] fileId = new byte[StringHelper.ID_LENGTH];
+            header.get(fileId);
+            return Arrays.equals(fileId, id);
+        }
+    }
+
+    /** Writes a sidecar file. The file is written to a temporary location and then moved,
+     * such that concurrent readers never see a partial file. */
+    static void write(Path p, LeafReader lr, int version, PayloadWriter payload) throws IOException {
+        Path tmp = Files.createTempFile(p.getParent(), p.getFileName().toString(), ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(version);
+            dos.write(segmentId(lr));
+            payload.write(dos);
+        } catch (IOException ioe) {
+            Files.deleteIfExists(tmp);
+            throw ioe;
+        }
+        Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,286 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+
+/** Writes a Lucene index of synthetic documents, shaped as those of Anserini: a 
+ * <tt>contents</tt> field of text, an <tt>id</tt> field of docnos, and optionally a stored
+ * <tt>raw</tt> field. Terms are drawn from a vocabulary following a Zipf distribution, and
+ * document lengths from a log-normal distribution. Terms are bursty: each token repeats an 
+ * earlier token of the same document with some probability, such that within-document term
+ * frequencies have the heavy tail of real text. Posting list lengths, term frequencies and 
+ * document lengths therefore resemble those of a real corpus. The same settings and seed 
+ * always produce the same documents. Intended for benchmarks and scale tests. 
+ * <p>
+ * From the command line:
+ * <pre>
+ * java -cp ... org.terrier.lucene.SyntheticIndexGenerator -docs 5000000 -segments 8 -positions -vectors -deletions 0.05 /path/to/index
+ * </pre>
+ */
+public class SyntheticIndexGenerator {
+
+    int numDocs = 100000;
+    int vocabularySize = 100000;
+    double zipfExponent = 1.0;
+    int meanDocumentLength = 200;
+    int segments = 1;
+    boolean positions = false;
+    boolean termVectors = false;
+    boolean storeRaw = false;
+    double burstiness = 0.3;
+    double deletions = 0;
+    String contentsField = LuceneIndex.DEFAULT_FIELD;
+    String docnoField = LuceneIndex.DOCNO_FIELD;
+    long seed = 42;
+
+    public SyntheticIndexGenerator setNumberOfDocuments(int _numDocs) {
+        numDocs = _numDocs;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setVocabularySize(int _vocabularySize) {
+        vocabularySize = _vocabularySize;
+        return this;
+    }
+
+    /** the skew of the term distribution: the frequency of the term of rank r is proportional to 1/r^exponent */
+    public SyntheticIndexGenerator setZipfExponent(double _zipfExponent) {
+        zipfExponent = _zipfExponent;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setMeanDocumentLength(int _meanDocumentLength) {
+        meanDocumentLength = _meanDocumentLength;
+        return this;
+    }
+
+    /** the number of segments that the index should have. Documents are spread evenly over the segments. */
+    public SyntheticIndexGenerator setSegments(int _segments) {
+        segments = _segments;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setPositions(boolean _positions) {
+        positions = _positions;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setTermVectors(boolean _termVectors) {
+        termVectors = _termVectors;
+        return this;
+    }
+
+    /** whether the text of each document is also stored, in a field named <tt>raw</tt> */
+    public SyntheticIndexGenerator setStoreRaw(boolean _storeRaw) {
+        storeRaw = _storeRaw;
+        return this;
+    }
+
+    /** the probability that each token of a document repeats an earlier token of that document */
+    public SyntheticIndexGenerator setBurstiness(double _burstiness) {
+        burstiness = _burstiness;
+        return this;
+    }
+
+    /** the fraction of documents that are deleted after indexing, chosen at random */
+    public SyntheticIndexGenerator setDeletions(double _deletions) {
+        deletions = _deletions;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setContentsField(String _contentsField) {
+        contentsField = _contentsField;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setDocnoField(String _docnoField) {
+        docnoField = _docnoField;
+        return this;
+    }
+
+    public SyntheticIndexGenerator setSeed(long _seed) {
+        seed = _seed;
+        return this;
+    }
+
+    /** Returns the term of the specified rank (0 is the most frequent). Terms are strings of
+     * letters, such that the analyzer keeps each as a single token. */
+    public static String term(int rank) {
+        StringBuilder sb = new StringBuilder();
+        int r = rank;
+        do {
+            sb.append((char) ('a' + r % 26));
+            r = r / 26 - 1;
+        } while (r >= 0);
+        return sb.reverse().toString();
+    }
+
+    public static String docno(int docid) {
+        return String.format("synth-%08d", docid);
+    }
+
+    /** cumulative probabilities of the terms, by rank */
+    double[] zipfCdf() {
+        final double[] cdf = new double[vocabularySize];
+        double sum = 0;
+        for (int r = 0; r < vocabularySize; r++) {
+            sum += 1.0d / Math.pow(r + 1, zipfExponent);
+            cdf[r] = sum;
+        }
+        for (int r = 0; r < vocabularySize; r++)
+            cdf[r] /= sum;
+        return cdf;
+    }
+
+    static int sample(double[] cdf, Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        // with no exact match, binarySearch returns -(insertion point) - 1
+        return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+    }
+
+    /** samples a document length from a log-normal distribution with the configured mean */
+    int sampleLength(Random random) {
+        final double sigma = 0.8;
+        final double mu = Math.log(meanDocumentLength) - sigma * sigma / 2;
+        return Math.max(1, (int) Math.round(Math.exp(mu + sigma * random.nextGaussian())));
+    }
+
+    FieldType contentsType() {
+        FieldType type = new FieldType();
+        type.setStored(false);
+        type.setTokenized(true);
+        type.setIndexOptions(positions ? IndexOptions.DOCS_AND_FREQS_AND_POSITIONS : IndexOptions.DOCS_AND_FREQS);
+        if (termVectors) {
+            type.setStoreTermVectors(true);
+            type.setStoreTermVectorPositions(positions);
+        }
+        type.freeze();
+        return type;
+    }
+
+    String sampleDocument(String[] vocabulary, double[] cdf, Random random, int[] ranks) {
+        final int length = Math.min(sampleLength(random), ranks.length);
+        final StringBuilder sb = new StringBuilder(length * 6);
+        for (int i = 0; i < length; i++) {
+            ranks[i] = i > 0 && random.nextDouble() < burstiness
+                ? ranks[random.nextInt(i)]
+                : sample(cdf, random);
+            sb.append(vocabulary[ranks[i]]).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /** Writes the index into the specified directory, replacing any index there */
+    public Path generate(Path dir) throws IOException {
+        final Random random = new Random(seed);
+        final double[] cdf = zipfCdf();
+        final String[] vocabulary = new String[vocabularySize];
+        for (int r = 0; r < vocabularySize; r++)
+            vocabulary[r] = term(r);
+        // documents are truncated beyond 100 times the mean length
+        final int[] ranks = new int[100 * meanDocumentLength];
+        final FieldType type = contentsType();
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        // segments are made by our commits, unless a segment outgrows the RAM buffer
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setRAMBufferSizeMB(1024);
+        try (FSDirectory directory = FSDirectory.open(dir)) {
+            try (IndexWriter writer = new IndexWriter(directory, config)) {
+                final int perSegment = (numDocs + segments - 1) / segments;
+                for (int docid = 0; docid < numDocs; docid++) {
+                    final String text = sampleDocument(vocabulary, cdf, random, ranks);
+                    Document doc = new Document();
+                    doc.add(new StringField(docnoField, docno(docid), Field.Store.YES));
+                    doc.add(new Field(contentsField, text, type));
+                    if (storeRaw)
+                        doc.add(new StoredField("raw", text));
+                    writer.addDocument(doc);
+                    if ((docid + 1) % perSegment == 0)
+                        writer.commit();
+                    if ((docid + 1) % 1000000 == 0)
+                        System.err.println("Generated " + (docid + 1) + " of " + numDocs + " documents");
+                }
+                writer.commit();
+            }
+            // merges any segments beyond those requested
+            IndexWriterConfig mergeConfig = new IndexWriterConfig(new StandardAnalyzer());
+            mergeConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            try (IndexWriter writer = new IndexWriter(directory, mergeConfig)) {
+                writer.forceMerge(segments);
+            }
+            // deletions are made after merging, which would otherwise expunge them
+            if (deletions > 0) {
+                IndexWriterConfig deleteConfig = new IndexWriterConfig(new StandardAnalyzer());
+                deleteConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+                deleteConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+                try (IndexWriter writer = new IndexWriter(directory, deleteConfig)) {
+                    for (int docid = 0; docid < numDocs; docid++)
+                        if (random.nextDouble() < deletions)
+                            writer.deleteDocuments(new Term(docnoField, docno(docid)));
+                    writer.commit();
+                }
+            }
+        }
+        return dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("docs", true, "number of documents (default 100000)");
+        options.addOption("vocab", true, "vocabulary size (default 100000)");
+        options.addOption("zipf", true, "Zipf exponent of the term distribution (default 1.0)");
+        options.addOption("length", true, "mean document length (default 200)");
+        options.addOption("burstiness", true, "probability that a token repeats an earlier token of its document (default 0.3)");
+        options.addOption("segments", true, "number of segments (default 1)");
+        options.addOption("deletions", true, "fraction of documents to delete (default 0)");
+        options.addOption("positions", false, "record positions");
+        options.addOption("vectors", false, "record term vectors");
+        options.addOption("raw", false, "store the text of each document in a raw field");
+        options.addOption("contents", true, "name of the text field (default contents)");
+        options.addOption("id", true, "name of the docno field (default id)");
+        options.addOption("seed", true, "random seed (default 42)");
+        CommandLine line = new DefaultParser().parse(options, args);
+        if (line.getArgs().length != 1) {
+            new HelpFormatter().printHelp("SyntheticIndexGenerator [options] indexdir", options);
+            System.exit(1);
+        }
+        SyntheticIndexGenerator generator = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(Integer.parseInt(line.getOptionValue("docs", "100000")))
+            .setVocabularySize(Integer.parseInt(line.getOptionValue("vocab", "100000")))
+            .setZipfExponent(Double.parseDouble(line.getOptionValue("zipf", "1.0")))
+            .setMeanDocumentLength(Integer.parseInt(line.getOptionValue("length", "200")))
+            .setBurstiness(Double.parseDouble(line.getOptionValue("burstiness", "0.3")))
+            .setSegments(Integer.parseInt(line.getOptionValue("segments", "1")))
+            .setDeletions(Double.parseDouble(line.getOptionValue("deletions", "0")))
+            .setPositions(line.hasOption("positions"))
+            .setTermVectors(line.hasOption("vectors"))
+            .setStoreRaw(line.hasOption("raw"))
+            .setContentsField(line.getOptionValue("contents", LuceneIndex.DEFAULT_FIELD))
+            .setDocnoField(line.getOptionValue("id", LuceneIndex.DOCNO_FIELD))
+            .setSeed(Long.parseLong(line.getOptionValue("seed", "42")));
+        long start = System.currentTimeMillis();
+        Path dir = generator.generate(Paths.get(line.getArgs()[0]));
+        System.err.println("Wrote " + dir + " in " + (System.currentTimeMillis() - start) / 1000 + "s");
+    }
+}
@@ -0,0 +1,86 @@
+package org.terrier.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PagedBytes;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+
+/** A compact mapping between terms and their ordinal within a sorted TermsEnum, which we
+ * use as termids. Lucene's default terms dictionary does not support TermsEnum.ord(), so
+ * the terms are copied (once) into PagedBytes, with monotonic packed offsets. Looking up
+ * a term is a binary search over the sorted terms, and so needs no hashing nor String
+ * conversion. Instances are immutable, and safe to share between threads. */
+class TermOrdinals {
+
+    static final int BLOCK_BITS = 15;
+
+    final PagedBytes.Reader bytes;
+    final PackedLongValues offsets;
+    final int numTerms;
+
+    TermOrdinals(TermsEnum te) throws IOException {
+        PagedBytes pb = new PagedBytes(BLOCK_BITS);
+        PackedLongValues.Builder ob = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            ob.add(pb.copyUsingLengthPrefix(term));
+        }
+        bytes = pb.freeze(true);
+        offsets = ob.build();
+        numTerms = (int) offsets.size();
+    }
+
+    int size() {
+        return numTerms;
+    }
+
+    /** Fills scratch with the bytes of the term with the specified ordinal, without copying */
+    BytesRef term(int ordinal, BytesRef scratch) {
+        bytes.fill(scratch, offsets.get(ordinal));
+        return scratch;
+    }
+
+    String term(int ordinal) {
+        return term(ordinal, new BytesRef()).utf8ToString();
+    }
+
+    /** Returns the ordinal of the term, or -1 if it is not present */
+    int ordinal(BytesRef term) {
+        return ordinal(term, 0, new BytesRef());
+    }
+
+    /** Returns the ordinal of the term, or -1 if it is not present, searching only ordinals
+     * from onwards. The search gallops forward from <tt>from</tt>, so looking up terms in
+     * sorted order (e.g. from a term vector) costs in proportion to the gap between them. */
+    int ordinal(BytesRef term, int from, BytesRef scratch) {
+        int lo = from;
+        int hi = numTerms - 1;
+        // gallop to find an upper bound
+        int step = 1;
+        while (lo + step <= hi) {
+            int cmp = term(lo + step, scratch).compareTo(term);
+            if (cmp == 0)
+                return lo + step;
+            if (cmp > 0) {
+                hi = lo + step - 1;
+                break;
+            }
+            lo += step + 1;
+            step <<= 1;
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = term(mid, scratch).compareTo(term);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+}
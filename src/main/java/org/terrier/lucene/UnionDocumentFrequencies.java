@@ -0,0 +1,172 @@
+package org.terrier.lucene;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/** The document frequencies over several fields of one segment, as a memory-mapped sidecar
+ * file. Lucene only has statistics per field, and a document may contain a term in several
+ * fields, so the document frequency of such a term needs a merged pass over its postings in
+ * each field. This is done once per segment, when the file is built on first use, rather than
+ * on each lookup. Only terms of more than one field are recorded, front-coded in sorted blocks
+ * by FrontCoding, each followed by its document frequency. The file also records the totals
+ * needed for the collection statistics.
+ * <p>
+ * Layout of the payload: the blocks and their offsets, then the number of terms
+ * of any field, the sum of their document frequencies (a long), the number of recorded terms
+ * and the length of the blocks. */
+class UnionDocumentFrequencies {
+
+    static final int VERSION = 2;
+    static final int BLOCK_SIZE = FrontCoding.BLOCK_SIZE;
+
+    final ByteBuffer buf;
+    /** number of distinct terms over all fields */
+    final int numTerms;
+    /** sum of the document frequencies over all fields of all terms */
+    final long numPointers;
+    /** number of terms that occur in more than one field */
+    final int numEntries;
+    final int offsetsStart;
+
+    UnionDocumentFrequencies(ByteBuffer _buf) {
+        this.buf = _buf;
+        numTerms = buf.getInt(buf.limit() - 20);
+        numPointers = buf.getLong(buf.limit() - 16);
+        numEntries = buf.getInt(buf.limit() - 8);
+        offsetsStart = buf.getInt(buf.limit() - 4);
+    }
+
+    /** Returns the document frequency over all fields of a term that occurs in more than one
+     * field, or -1 if it is not such a term. Thread-safe. */
+    int get(BytesRef term) {
+        if (numEntries == 0)
+            return -1;
+        final FrontCoding.Reader in = new FrontCoding.Reader(buf, offsetsStart);
+        // the last block whose first term is not after the term sought
+        int lo = 0;
+        int hi = (numEntries - 1) / BLOCK_SIZE;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            in.seekBlock(mid);
+            if (in.get().compareTo(term) <= 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        in.seekBlock(lo);
+        final int end = Math.min(numEntries, (lo + 1) * BLOCK_SIZE);
+        for (int i = lo * BLOCK_SIZE; ; ) {
+            final int df = in.readVInt();
+            final int cmp = in.get().compareTo(term);
+            if (cmp == 0)
+                return df;
+            if (cmp > 0 || ++i == end)
+                return -1;
+            in.next();
+        }
+    }
+
+    static Path path(LeafReader lr, String[] fields) {
+        return SidecarFile.path(lr, String.join(".", fields) + ".uniondf");
+    }
+
+    /** Loads the document frequencies of the fields, building them if necessary. If the file
+     * cannot be written (e.g. the index directory is read-only), they are kept in memory. */
+    static UnionDocumentFrequencies load(LeafReader lr, String[] fields) throws IOException {
+        try {
+            final Path p = path(lr, fields);
+            ByteBuffer buf = SidecarFile.map(p, lr, VERSION);
+            if (buf == null) {
+                System.err.println("Building document frequencies over fields in " + p);
+                SidecarFile.write(p, lr, VERSION, dos -> write(lr, fields, dos));
+                buf = SidecarFile.map(p, lr, VERSION);
+            }
+            return new UnionDocumentFrequencies(buf);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Could not save document frequencies over fields, they will be kept in memory: " + e);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (DataOutputStream dos = new DataOutputStream(baos)) {
+                write(lr, fields, dos);
+            }
+            return new UnionDocumentFrequencies(ByteBuffer.wrap(baos.toByteArray()));
+        }
+    }
+
+    /** writes the payload, from a merged pass over the terms of the fields */
+    static void write(LeafReader lr, String[] fields, DataOutputStream dos) throws IOException {
+        final TermsEnum[] tes = new TermsEnum[fields.length];
+        final BytesRef[] heads = new BytesRef[fields.length];
+        for (int f = 0; f < fields.length; f++) {
+            final Terms terms = lr.terms(fields[f]);
+            tes[f] = terms == null ? null : terms.iterator();
+            heads[f] = tes[f] == null ? null : tes[f].next();
+        }
+        final FrontCoding.Writer writer = new FrontCoding.Writer(dos);
+        final PostingsEnum[] pes = new PostingsEnum[fields.length];
+        int numTerms = 0;
+        long numPointers = 0;
+        int numEntries = 0;
+        BytesRef min;
+        while ((min = LuceneIndex.smallest(heads)) != null) {
+            // the TermsEnum that min came from reuses it
+            min = BytesRef.deepCopyOf(min);
+            numTerms++;
+            int numPresent = 0;
+            int df = 0;
+            for (int f = 0; f < fields.length; f++) {
+                if (heads[f] != null && heads[f].equals(min)) {
+                    numPresent++;
+                    df = tes[f].docFreq();
+                }
+            }
+            if (numPresent > 1) {
+                for (int f = 0; f < fields.length; f++)
+                    pes[f] = heads[f] != null && heads[f].equals(min)
+                            ? tes[f].postings(pes[f], PostingsEnum.NONE)
+                            : null;
+                df = unionDocumentFrequency(pes);
+                writer.add(min);
+                FrontCoding.writeVInt(dos, df);
+                numEntries++;
+            }
+            numPointers += df;
+            for (int f = 0; f < fields.length; f++)
+                if (heads[f] != null && heads[f].equals(min))
+                    heads[f] = tes[f].next();
+        }
+        final int offsetsStart = writer.finish();
+        dos.writeInt(numTerms);
+        dos.writeLong(numPointers);
+        dos.writeInt(numEntries);
+        dos.writeInt(offsetsStart);
+    }
+
+    /** counts the documents of the union of some postings, some of which may be null, in a merged pass */
+    static int unionDocumentFrequency(PostingsEnum[] pes) throws IOException {
+        final int[] docs = new int[pes.length];
+        for (int i = 0; i < pes.length; i++)
+            docs[i] = pes[i] == null ? DocIdSetIterator.NO_MORE_DOCS : pes[i].nextDoc();
+        int df = 0;
+        while (true) {
+            int min = DocIdSetIterator.NO_MORE_DOCS;
+            for (int d : docs)
+                min = Math.min(min, d);
+            if (min == DocIdSetIterator.NO_MORE_DOCS)
+                return df;
+            df++;
+            for (int i = 0; i < pes.length; i++)
+                if (docs[i] == min)
+                    docs[i] = pes[i].nextDoc();
+        }
+    }
+}
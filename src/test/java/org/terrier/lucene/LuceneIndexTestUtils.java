@@ -7,14 +7,19 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.junit.rules.TemporaryFolder;
 
 public class LuceneIndexTestUtils
@@ -22,6 +27,13 @@ public class LuceneIndexTestUtils
     TemporaryFolder tempLocation;
     boolean positions;
     boolean direct;
+    boolean merge = true;
+    /** if set, docnos are also written as sorted doc values */
+    boolean docnoDocValues = false;
+    /** if unset, docnos are only stored, not indexed */
+    boolean docnoIndexed = true;
+    /** if set, the text of a title field for each document */
+    String[] titles;
 
     public LuceneIndexTestUtils(TemporaryFolder tf){
         this.tempLocation = tf;
@@ -31,6 +43,11 @@ public class LuceneIndexTestUtils
         positions = _positions;
         direct = _direct;
     }
+    /** if _merge is false, each document is written to its own segment */
+    public LuceneIndexTestUtils(TemporaryFolder _tf, boolean _positions, boolean _direct, boolean _merge) {
+        this(_tf, _positions, _direct);
+        merge = _merge;
+    }
 
     // Path buildTestIndex(String[] docs, String[] docnos) throws IOException {
     //     Path indexDir = tempLocation.newFolder("index").toPath();
@@ -76,8 +93,60 @@ public class LuceneIndexTestUtils
         Directory index = FSDirectory.open(indexDir);
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        if (! merge)
+            config.setMergePolicy(NoMergePolicy.INSTANCE);
         IndexWriter writer = new IndexWriter(index, config);
 
+        FieldType type = fieldType();
+
+        for(int i=0;i<docs.length;i++)
+        {
+            addDoc(writer, type, docs[i], titles == null ? null : titles[i], docnos[i]);
+            if (! merge)
+                writer.commit();
+        }
+        writer.commit();
+        if (merge)
+            writer.forceMerge(1);
+        writer.close();
+        return indexDir;
+    }
+    
+    /** adds the documents to an existing index, as a new segment */
+    final void appendToIndex(Path indexDir, String[] docs, String[] docnos) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            for(int i=0;i<docs.length;i++)
+                addDoc(writer, fieldType(), docs[i], docnos[i]);
+            writer.commit();
+        }
+    }
+
+    /** deletes the documents with the specified docnos, without merging away the deletions */
+    final void deleteDocuments(Path indexDir, String... docnos) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            for (String docno : docnos)
+                writer.deleteDocuments(new Term("id", docno));
+            writer.commit();
+        }
+    }
+
+    /** merges all segments into one */
+    final void forceMerge(Path indexDir) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            writer.forceMerge(1);
+            writer.commit();
+        }
+    }
+
+    FieldType fieldType() {
         FieldType type = new FieldType();
         type.setStored(true);
         type.setTokenized(true);
@@ -91,17 +160,9 @@ public class LuceneIndexTestUtils
             if (positions)
                 type.setStoreTermVectorPositions(true);
         }
-
-        for(int i=0;i<docs.length;i++)
-        {
-            addDoc(writer, type, docs[i], docnos[i]);
-        }
-        writer.commit();
-        writer.forceMerge(1);
-        writer.close();
-        return indexDir;
+        return type;
     }
-    
+
     final IndexReader makeIndexReader(String[] docs, String[] docnos) throws IOException {
         Path index = makeIndex(docs, docnos);
         System.err.println(index.toString());
@@ -109,10 +170,22 @@ public class LuceneIndexTestUtils
     }
 
     void addDoc(IndexWriter w, FieldType type, String content, String docno) throws IOException {
+        addDoc(w, type, content, null, docno);
+    }
+
+    void addDoc(IndexWriter w, FieldType type, String content, String title, String docno) throws IOException {
         Document doc = new Document();
         doc.add(new Field(LuceneIndex.DEFAULT_FIELD, content, type));
+        if (title != null)
+            doc.add(new Field("title", title, type));
         // Here, we use a string field for docno to avoid tokenizing.
-        doc.add(new StringField("id", docno, Field.Store.YES));
+        // A null docno leaves the document without one.
+        if (docno != null && docnoIndexed)
+            doc.add(new StringField("id", docno, Field.Store.YES));
+        else if (docno != null)
+            doc.add(new StoredField("id", docno));
+        if (docno != null && docnoDocValues)
+            doc.add(new SortedDocValuesField("id", new BytesRef(docno)));
         w.addDocument(doc);
     }
 
@@ -1,37 +1,71 @@
 
 package org.terrier.lucene;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.MultiTerms;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.terrier.matching.QueryResultSet;
+import org.terrier.matching.ResultSet;
+import org.terrier.matching.daat.Full;
 import org.terrier.querying.IndexRef;
 import org.terrier.querying.Manager;
 import org.terrier.querying.ManagerFactory;
 import org.terrier.querying.SearchRequest;
+import org.terrier.structures.CollectionStatistics;
 import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.FieldDocumentIndex;
+import org.terrier.structures.FieldEntryStatistics;
 import org.terrier.structures.Index;
 import org.terrier.structures.IndexFactory;
 import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.PostingIndexInputStream;
 import org.terrier.structures.Index.DirectIndexRef;
 import org.terrier.structures.postings.BlockPosting;
+import org.terrier.structures.postings.FieldPosting;
 import org.terrier.structures.postings.IterablePosting;
 import org.terrier.structures.postings.PostingUtil;
+import org.terrier.structures.postings.WritablePosting;
 import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
 
 import gnu.trove.TIntHashSet;
 
@@ -60,6 +94,312 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         
     }
 
+    @Test public void testDirectoryOptions() throws Exception
+    {
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, false, LuceneIndex.DOCLEN_FROM_TERM_VECTORS).makeIndex(
+            DOCS,
+            DOCNOS);
+        assertTrue(LuceneIndexFactory.openDirectory(indexLoc, Collections.emptyMap()) instanceof MMapDirectory);
+        assertTrue(LuceneIndexFactory.openDirectory(indexLoc, Collections.singletonMap("directory", "nio")) instanceof NIOFSDirectory);
+        ApplicationSetup.setProperty("lucene.directory", "simple");
+        try {
+            assertTrue(LuceneIndexFactory.openDirectory(indexLoc, Collections.emptyMap()) instanceof SimpleFSDirectory);
+        } finally {
+            ApplicationSetup.setProperty("lucene.directory", "mmap");
+        }
+        try {
+            LuceneIndexFactory.openDirectory(indexLoc, Collections.singletonMap("directory", "ram"));
+            fail("unknown directory type should be rejected");
+        } catch (IllegalArgumentException iae) {}
+
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString() + "?directory=nio&preload=true"));
+        assertNotNull(index);
+        assertTrue(index instanceof LuceneIndex);
+        checkIndex((LuceneIndex)index);
+        index.close();
+    }
+
+    static String[] makeDocnos(int n) {
+        String[] docnos = new String[n];
+        for (int i = 0; i < n; i++)
+            docnos[i] = String.format("clueweb09-en%04d-%02d", i / 7, i % 7);
+        return docnos;
+    }
+
+    static void checkDocnos(LuceneIndex index, String[] docnos) throws Exception {
+        MetaIndex meta = index.getMetaIndex();
+        for (int docid = 0; docid < docnos.length; docid++)
+            assertEquals(docnos[docid], meta.getItem("docno", docid));
+        // a batch in no particular order, with a repeat
+        int[] docids = new int[] { 57, 3, 99, 16, 15, 0, 57, 32 };
+        String[] batch = meta.getItems("docno", docids);
+        for (int i = 0; i < docids.length; i++)
+            assertEquals(docnos[docids[i]], batch[i]);
+
+        // and back again
+        for (int docid = 0; docid < docnos.length; docid++)
+            assertEquals(docid, meta.getDocument("docno", docnos[docid]));
+        assertEquals(-1, meta.getDocument("docno", "clueweb09-en9999-00"));
+        int[] resolved = ((BatchMetaIndex) meta).getDocuments("docno", new String[] { docnos[99], "clueweb09-en9999-00", docnos[3] });
+        assertEquals(99, resolved[0]);
+        assertEquals(-1, resolved[1]);
+        assertEquals(3, resolved[2]);
+    }
+
+    @Test public void testDocnos() throws Exception
+    {
+        final int n = 100;
+        String[] docs = new String[n];
+        Arrays.fill(docs, "the lazy dog");
+        String[] docnos = makeDocnos(n);
+
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, false);
+        Path indexLoc = utils.makeIndex(docs, docnos);
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertEquals(LuceneMetaIndex.DocnoSource.TABLE, ((LuceneMetaIndex) index.getMetaIndex()).source);
+        checkDocnos((LuceneIndex) index, docnos);
+        assertTrue(Files.exists(DocnoTable.path(((LuceneIndex) index).ir, LuceneIndex.DOCNO_FIELD)));
+        index.close();
+
+        ApplicationSetup.setProperty("lucene.docnos", "stored");
+        try {
+            index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            assertEquals(LuceneMetaIndex.DocnoSource.STORED, ((LuceneMetaIndex) index.getMetaIndex()).source);
+            checkDocnos((LuceneIndex) index, docnos);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.docnos", "auto");
+        }
+    }
+
+    @Test public void testMissingDocnos() throws Exception
+    {
+        final int n = 40;
+        String[] docs = new String[n];
+        Arrays.fill(docs, "the lazy dog");
+        String[] docnos = makeDocnos(n);
+        // the first of a block, one within a block, and the next after it
+        docnos[16] = null;
+        docnos[20] = null;
+        docnos[21] = null;
+
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, false);
+        utils.docnoDocValues = true;
+        // reverse lookups use the docno order
+        utils.docnoIndexed = false;
+        Path indexLoc = utils.makeIndex(docs, docnos);
+        for (String source : new String[] { "docvalues", "table", "stored" }) {
+            ApplicationSetup.setProperty("lucene.docnos", source);
+            try {
+                Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+                MetaIndex meta = index.getMetaIndex();
+                for (int docid = 0; docid < n; docid++)
+                    assertEquals(source, docnos[docid], meta.getItem("docno", docid));
+                assertArrayEquals(source, new String[] { docnos[22], null, docnos[15], null },
+                    meta.getItems("docno", new int[] { 22, 21, 15, 16 }));
+                for (int docid = 0; docid < n; docid++)
+                    if (docnos[docid] != null)
+                        assertEquals(source, docid, meta.getDocument("docno", docnos[docid]));
+                // documents without a docno are not found by an empty one
+                assertEquals(source, -1, meta.getDocument("docno", ""));
+                index.close();
+            } finally {
+                ApplicationSetup.setProperty("lucene.docnos", "auto");
+            }
+        }
+    }
+
+    @Test public void testStoredFieldKeys() throws Exception
+    {
+        final int n = 300;
+        String[] docs = new String[n];
+        for (int i = 0; i < n; i++)
+            docs[i] = "the lazy dog number " + i;
+        String[] docnos = makeDocnos(n);
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, false, false).makeIndex(docs, docnos);
+
+        ApplicationSetup.setProperty("lucene.meta.keys", "docno," + LuceneIndex.DEFAULT_FIELD);
+        try {
+            Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            MetaIndex meta = index.getMetaIndex();
+            assertArrayEquals(new String[] { "docno", LuceneIndex.DEFAULT_FIELD }, meta.getKeys());
+            assertEquals(docs[7], meta.getItem(LuceneIndex.DEFAULT_FIELD, 7));
+            assertArrayEquals(new String[] { docnos[7], docs[7] }, meta.getAllItems(7));
+
+            int[] docids = new int[] { 250, 3, 299, 16, 15, 0, 250, 132 };
+            String[][] items = meta.getItems(meta.getKeys(), docids);
+            assertEquals(docids.length, items.length);
+            for (int i = 0; i < docids.length; i++) {
+                assertEquals(docnos[docids[i]], items[i][0]);
+                assertEquals(docs[docids[i]], items[i][1]);
+            }
+            String[] contents = meta.getItems(LuceneIndex.DEFAULT_FIELD, docids);
+            for (int i = 0; i < docids.length; i++)
+                assertEquals(docs[docids[i]], contents[i]);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.meta.keys", "docno");
+        }
+    }
+
+    @Test public void testDocnosFromDocValues() throws Exception
+    {
+        final int n = 100;
+        String[] docs = new String[n];
+        Arrays.fill(docs, "the lazy dog");
+        String[] docnos = makeDocnos(n);
+
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, false);
+        utils.docnoDocValues = true;
+        utils.docnoIndexed = false;
+        Path indexLoc = utils.makeIndex(docs, docnos);
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertEquals(LuceneMetaIndex.DocnoSource.DOCVALUES, ((LuceneMetaIndex) index.getMetaIndex()).source);
+        checkDocnos((LuceneIndex) index, docnos);
+        // docnos are not indexed, so reverse lookups used the docno order
+        assertTrue(Files.exists(DocnoOrder.path(((LuceneIndex) index).ir, LuceneIndex.DOCNO_FIELD)));
+        index.close();
+    }
+
+    @Test public void testSyntheticIndexGenerator() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(1000)
+            .setVocabularySize(500)
+            .setMeanDocumentLength(20)
+            .setSegments(3)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertTrue(index instanceof CompositeLuceneIndex);
+        assertEquals(3, ((CompositeLuceneIndex) index).leaves.length);
+        assertEquals(1000, index.getCollectionStatistics().getNumberOfDocuments());
+        assertEquals(SyntheticIndexGenerator.docno(999), index.getMetaIndex().getItem("docno", 999));
+        // under a Zipf distribution, the most frequent term is in (nearly) every document
+        LexiconEntry first = index.getLexicon().getLexiconEntry(SyntheticIndexGenerator.term(0));
+        LexiconEntry last = index.getLexicon().getLexiconEntry(SyntheticIndexGenerator.term(499));
+        assertNotNull(first);
+        assertTrue(last == null || first.getDocumentFrequency() > last.getDocumentFrequency());
+        index.close();
+    }
+
+    @Test public void testSyntheticIndexDeletions() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(1000)
+            .setVocabularySize(500)
+            .setMeanDocumentLength(20)
+            .setPositions(true)
+            .setTermVectors(true)
+            .setStoreRaw(true)
+            .setDeletions(0.1)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexLoc))) {
+            assertEquals(1, reader.leaves().size());
+            assertEquals(1000, reader.maxDoc());
+            assertTrue(reader.numDocs() < 1000);
+            assertTrue(reader.numDocs() > 800);
+            LeafReader lr = reader.leaves().get(0).reader();
+            assertTrue(lr.getFieldInfos().hasProx());
+            assertNotNull(lr.getTermVector(0, LuceneIndex.DEFAULT_FIELD));
+            assertNotNull(lr.document(0).get("raw"));
+        }
+    }
+
+    @Test public void testDeletions() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(1000)
+            .setVocabularySize(200)
+            .setMeanDocumentLength(20)
+            .setDeletions(0.2)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        String term = SyntheticIndexGenerator.term(3);
+
+        LuceneIndex index = (LuceneIndex) IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertNotNull(index.liveDocs);
+        int numDocs = index.ir.numDocs();
+        assertTrue(numDocs < 1000);
+        assertEquals(numDocs, index.getCollectionStatistics().getNumberOfDocuments());
+        // docids range over all documents, deleted or not
+        assertEquals(1000, index.getDocumentIndex().getNumberOfDocuments());
+        assertEquals(1000, index.getMetaIndex().size());
+        for (int docid = 0; docid < 1000; docid++)
+            index.getDocumentIndex().getDocumentLength(docid);
+
+        // postings skip deleted documents, including when skipping ahead
+        LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+        IterablePosting ip = index.getInvertedIndex().getPostings(le);
+        int live = 0;
+        long liveTf = 0;
+        while (ip.next() != IterablePosting.EOL)
+        {
+            assertTrue(index.liveDocs.get(ip.getId()));
+            live++;
+            liveTf += ip.getFrequency();
+        }
+        ip = index.getInvertedIndex().getPostings(le);
+        for (int target = 0; target < 1000 && ip.next(target) != IterablePosting.EOL; target += 37)
+            assertTrue(index.liveDocs.get(ip.getId()));
+        // by default, term statistics are those of Lucene, which include deleted documents
+        assertTrue(le.getDocumentFrequency() > live);
+        long tokens = index.getCollectionStatistics().getNumberOfTokens();
+        index.close();
+
+        ApplicationSetup.setProperty("lucene.deletions.statistics", "true");
+        try {
+            index = (LuceneIndex) IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            le = index.getLexicon().getLexiconEntry(term);
+            assertEquals(live, le.getDocumentFrequency());
+            assertEquals(liveTf, le.getFrequency());
+            assertTrue(index.getCollectionStatistics().getNumberOfTokens() < tokens);
+            assertEquals(numDocs, index.getCollectionStatistics().getNumberOfDocuments());
+            doRetrieval(index);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.deletions.statistics", "false");
+        }
+    }
+
+    @Test public void testDeletedTermsNotIterated() throws Exception
+    {
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, false);
+        Path indexLoc = utils.makeIndex(
+            new String[] { "the lazy dog", "a quick fox", "zebra stripes", "the fox jumps" },
+            new String[] { "doc1", "doc2", "doc3", "doc4" });
+        utils.appendToIndex(indexLoc, new String[] { "the lazy cat" }, new String[] { "doc5" });
+        // zebra and stripes now only occur in a deleted document
+        utils.deleteDocuments(indexLoc, "doc3");
+
+        ApplicationSetup.setProperty("lucene.deletions.statistics", "true");
+        try {
+            Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            assertTrue(index instanceof CompositeLuceneIndex);
+            checkLiveTerms(index);
+            checkLiveTerms(((CompositeLuceneIndex) index).leaves[0]);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.deletions.statistics", "false");
+        }
+    }
+
+    /** checks that the lexicon has no entry, nor term count, for terms of only deleted documents */
+    static void checkLiveTerms(Index index) throws Exception {
+        assertNull(index.getLexicon().getLexiconEntry("zebra"));
+        Iterator<Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+        int terms = 0;
+        while (iter.hasNext()) {
+            Entry<String, LexiconEntry> e = iter.next();
+            assertFalse(e.getKey().equals("zebra") || e.getKey().equals("stripes"));
+            assertTrue(e.getValue().getDocumentFrequency() > 0);
+            terms++;
+        }
+        assertEquals(index.getLexicon().numberOfEntries(), terms);
+        assertEquals(index.getCollectionStatistics().getNumberOfUniqueTerms(), terms);
+        iter = index.getLexicon().getLexiconEntryRange("stripes", "zebra");
+        while (iter.hasNext())
+            assertFalse(iter.next().getKey().equals("zebra"));
+    }
+
     @Test public void testBasic() throws Exception
     {
         IndexReader ir = new LuceneIndexTestUtils(tempLocation, false, LuceneIndex.DOCLEN_FROM_TERM_VECTORS).makeIndexReader(
@@ -101,11 +441,23 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         assertTrue(ip instanceof BlockPosting);
         BlockPosting bp = (BlockPosting)ip;
         assertEquals(0, ip.next());
-        assertEquals(2, bp.getPositions()[0]);
+        int[] positions = bp.getPositions();
+        assertEquals(2, positions[0]);
+        // repeated calls return the same positions, without decoding past them
+        assertSame(positions, bp.getPositions());
+        assertArrayEquals(new int[]{2}, bp.getPositions());
+        WritablePosting wp = ip.asWritablePosting();
+        assertTrue(wp instanceof BlockPosting);
+        assertArrayEquals(new int[]{2}, ((BlockPosting) wp).getPositions());
         assertEquals(1, ip.next());
+        // the array is reused by postings of the same frequency
+        assertSame(positions, bp.getPositions());
         assertEquals(2, bp.getPositions()[0]);
+        // but the positions of the writable posting are its own
+        assertEquals(0, wp.getId());
+        assertArrayEquals(new int[]{2}, ((BlockPosting) wp).getPositions());
         assertEquals(IterablePosting.EOL, ip.next());
-        
+
         //check direct index works
         checkDocContents(0, index, new String[]{"hello", "there", "fox"});
         checkDocContents(1, index, new String[]{"the", "lazy", "fox"});
@@ -136,9 +488,769 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         doRetrieval(index);
         checkDocContents(0, index, new String[]{"hello", "there", "fox"});
         checkDocContents(1, index, new String[]{"the", "lazy", "fox"});
+
+        //termids are the ordinals of the sorted terms
+        int expectedTermId = 0;
+        Iterator<Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+        while(iter.hasNext())
+        {
+            Entry<String, LexiconEntry> e = iter.next();
+            assertEquals(expectedTermId, e.getValue().getTermId());
+            assertEquals(e.getKey(), index.getLexicon().getLexiconEntry(expectedTermId).getKey());
+            expectedTermId++;
+        }
+        assertEquals(5, expectedTermId);
+        index.close();
+    }
+
+    @Test public void testSkipping() throws Exception
+    {
+        String[] docs = new String[100];
+        String[] docnos = new String[100];
+        for(int i=0;i<docs.length;i++)
+        {
+            docs[i] = i % 10 == 0 ? "common rare" : "common";
+            docnos[i] = "doc" + i;
+        }
+        IndexReader ir = new LuceneIndexTestUtils(tempLocation, true, false).makeIndexReader(docs, docnos);
+        LuceneIndex index = new LuceneIndex(ir.leaves().get(0).reader(), tempLocation.getRoot().toString());
+
+        IterablePosting ip = index.getInvertedIndex().getPostings(index.getLexicon().getLexiconEntry("common"));
+        assertEquals(0, ip.next(0));
+        //already there, so should not move
+        assertEquals(0, ip.next(0));
+        assertEquals(55, ip.next(55));
+        assertEquals(1, ip.getFrequency());
+        assertEquals(1, ip.getDocumentLength());
+        assertEquals(56, ip.next());
+        assertEquals(60, ip.next(60));
+        assertEquals(2, ip.getDocumentLength());
+        assertFalse(ip.endOfPostings());
+        assertEquals(IterablePosting.EOL, ip.next(1000));
+        assertTrue(ip.endOfPostings());
+
+        IterablePosting rare = index.getInvertedIndex().getPostings(index.getLexicon().getLexiconEntry("rare"));
+        assertTrue(rare instanceof BlockPosting);
+        assertEquals(10, rare.next(1));
+        assertEquals(1, ((BlockPosting)rare).getPositions()[0]);
+        assertEquals(50, rare.next(41));
+        assertEquals(1, ((BlockPosting)rare).getPositions()[0]);
+        assertEquals(IterablePosting.EOL, rare.next(91));
+        index.close();
+    }
+
+    @Test public void testImpacts() throws Exception
+    {
+        //enough postings for Lucene to record impacts for the first blocks
+        String[] docs = new String[300];
+        String[] docnos = new String[300];
+        for(int i=0;i<docs.length;i++)
+        {
+            docs[i] = i == 42 ? "common common common" : "common other";
+            docnos[i] = "doc" + i;
+        }
+        IndexReader ir = new LuceneIndexTestUtils(tempLocation, false, false).makeIndexReader(docs, docnos);
+        ApplicationSetup.setProperty("lucene.impacts", "true");
+        try {
+            LuceneIndex index = new LuceneIndex(ir.leaves().get(0).reader(), tempLocation.getRoot().toString());
+
+            LexiconEntry le = index.getLexicon().getLexiconEntry("common");
+            // impacts are only walked once their bounds are asked for
+            assertNull(((LuceneIndex.LuceneLexiconEntry) le).impactFreqs);
+            assertEquals(3, le.getMaxFrequencyInDocuments());
+            assertNotNull(((LuceneIndex.LuceneLexiconEntry) le).impactFreqs);
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            assertTrue(ip instanceof BlockMaxPosting);
+            BlockMaxPosting bmp = (BlockMaxPosting) ip;
+            assertTrue(bmp.advanceShallow(0) >= 0);
+            assertEquals(3, bmp.getBlockMaxFrequency());
+            assertEquals(42, ip.next(42));
+            assertEquals(3, ip.getFrequency());
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.impacts", "false");
+        }
+    }
+
+    @Test public void testLuceneBM25() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(1000)
+            .setVocabularySize(200)
+            .setMeanDocumentLength(50)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        LexiconEntry le = index.getLexicon().getLexiconEntry(SyntheticIndexGenerator.term(3));
+        LuceneBM25 model = new LuceneBM25();
+        model.setCollectionStatistics(index.getCollectionStatistics());
+        model.setEntryStatistics(le);
+        model.setKeyFrequency(1);
+        model.prepare();
+
+        // scores from the norm table are those from the decoded document lengths
+        IterablePosting ip = index.getInvertedIndex().getPostings(le);
+        assertTrue(ip instanceof NormPosting);
+        while (ip.next() != IterablePosting.EOL)
+        {
+            int norm = ((NormPosting) ip).getNorm();
+            assertEquals(ip.getDocumentLength(), NormPosting.length(norm));
+            assertEquals(model.score(ip.getFrequency(), ip.getDocumentLength()), model.score(ip), 1e-9);
+        }
+
+        Manager m = ManagerFactory._from_(index.getIndexRef());
+        SearchRequest srq = m.newSearchRequestFromQuery(SyntheticIndexGenerator.term(3));
+        srq.setControl(SearchRequest.CONTROL_WMODEL, LuceneBM25.class.getName());
+        m.runSearchRequest(srq);
+        assertTrue(srq.getResults().size() > 0);
         index.close();
     }
 
+    @Test public void testExactDocumentLengths() throws Exception
+    {
+        //too long to be represented exactly by a norm
+        StringBuilder longDoc = new StringBuilder("fox");
+        for(int i=0;i<1000;i++)
+            longDoc.append(" lazy");
+        IndexReader ir = new LuceneIndexTestUtils(tempLocation, false, false).makeIndexReader(
+            new String[]{"hello there fox", longDoc.toString()}, DOCNOS);
+        LeafReader lr = ir.leaves().get(0).reader();
+        ApplicationSetup.setProperty("lucene.doclens.exact", "true");
+        try{
+            LuceneIndex index = new LuceneIndex(lr, tempLocation.getRoot().toString());
+            Path sidecar = ExactDocumentLengths.path(lr, LuceneIndex.DEFAULT_FIELD);
+            assertTrue(Files.exists(sidecar));
+            checkExactLengths(index);
+
+            //corrupt the segment id recorded in the file, it should be rebuilt
+            try (FileChannel fc = FileChannel.open(sidecar, StandardOpenOption.WRITE)) {
+                fc.write(ByteBuffer.wrap(new byte[StringHelper.ID_LENGTH]), 8);
+            }
+            assertNull(SidecarFile.map(sidecar, lr, ExactDocumentLengths.VERSION));
+            index = new LuceneIndex(lr, tempLocation.getRoot().toString());
+            assertNotNull(SidecarFile.map(sidecar, lr, ExactDocumentLengths.VERSION));
+            checkExactLengths(index);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.doclens.exact", "false");
+        }
+    }
+
+    static void checkExactLengths(LuceneIndex index) throws Exception {
+        assertEquals(3, index.getDocumentIndex().getDocumentLength(0));
+        assertEquals(1001, index.getDocumentIndex().getDocumentLength(1));
+        IterablePosting ip = index.getInvertedIndex().getPostings(index.getLexicon().getLexiconEntry("fox"));
+        assertEquals(0, ip.next());
+        assertEquals(3, ip.getDocumentLength());
+        assertEquals(1, ip.next());
+        assertEquals(1001, ip.getDocumentLength());
+    }
+
+    @Test public void testMultiSegment() throws Exception
+    {
+        String[] docs = new String[]{"hello there fox", "the lazy fox", "the quick brown dog", "a fox again"};
+        String[] docnos = new String[]{"doc1", "doc2", "doc3", "doc4"};
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, true, false, false).makeIndex(docs, docnos);
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertTrue(index instanceof CompositeLuceneIndex);
+        assertEquals(4, ((CompositeLuceneIndex) index).leaves.length);
+
+        //statistics are over all segments
+        assertEquals(4, index.getCollectionStatistics().getNumberOfDocuments());
+        // the vocabulary is only walked once its size is asked for
+        assertEquals(-1, ((CompositeLuceneIndex.CompositeCollectionStatistics) index.getCollectionStatistics()).numTerms);
+        assertEquals(10, index.getCollectionStatistics().getNumberOfUniqueTerms());
+        assertEquals(13, index.getCollectionStatistics().getNumberOfTokens());
+        LexiconEntry le = index.getLexicon().getLexiconEntry("fox");
+        assertEquals(3, le.getDocumentFrequency());
+        assertEquals(3, le.getFrequency());
+        assertNull(index.getLexicon().getLexiconEntry("cat"));
+
+        //postings are concatenated, and skipping goes to the right segment
+        IterablePosting ip = index.getInvertedIndex().getPostings(le);
+        assertTrue(ip instanceof BlockPosting);
+        assertEquals(0, ip.next());
+        assertEquals(3, ip.getDocumentLength());
+        assertEquals(1, ip.next());
+        assertEquals(2, ((BlockPosting) ip).getPositions()[0]);
+        assertEquals(3, ip.next(2));
+        assertEquals(1, ((BlockPosting) ip).getPositions()[0]);
+        assertEquals(IterablePosting.EOL, ip.next());
+        assertTrue(ip.endOfPostings());
+
+        ip = index.getInvertedIndex().getPostings(le);
+        assertEquals(3, ip.next(3));
+        assertEquals(IterablePosting.EOL, ip.next(4));
+
+        //the lexicon iterator merges the segments
+        Iterator<Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+        int count = 0;
+        String last = "";
+        while(iter.hasNext())
+        {
+            Entry<String, LexiconEntry> e = iter.next();
+            assertTrue(e.getKey().compareTo(last) > 0);
+            last = e.getKey();
+            if (e.getKey().equals("the"))
+                assertEquals(2, e.getValue().getDocumentFrequency());
+            count++;
+        }
+        assertEquals(10, count);
+
+        assertEquals("doc3", index.getMetaIndex().getItem("docno", 2));
+        assertEquals(4, index.getDocumentIndex().getDocumentLength(2));
+        doRetrieval(index);
+        index.close();
+    }
+
+    @Test public void testFields() throws Exception
+    {
+        checkFields(true);
+    }
+
+    @Test public void testFieldsMultiSegment() throws Exception
+    {
+        checkFields(false);
+    }
+
+    void checkFields(boolean merge) throws Exception
+    {
+        String[] docs = new String[]{"hello there fox", "the lazy fox", "the quick brown dog", "a fox again"};
+        String[] titles = new String[]{"fox news", "dogs", "the fox", "nothing"};
+        String[] docnos = new String[]{"doc1", "doc2", "doc3", "doc4"};
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, true, false, merge);
+        utils.titles = titles;
+        Path indexLoc = utils.makeIndex(docs, docnos);
+        ApplicationSetup.setProperty("lucene.fields", "title,contents");
+        try {
+            Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            assertEquals(! merge, index instanceof CompositeLuceneIndex);
+
+            CollectionStatistics cs = index.getCollectionStatistics();
+            assertArrayEquals(new String[]{"title", "contents"}, cs.getFieldNames());
+            assertArrayEquals(new long[]{6, 13}, cs.getFieldTokens());
+            assertEquals(19, cs.getNumberOfTokens());
+            assertEquals(13, cs.getNumberOfUniqueTerms());
+            assertFalse(cs.hasPositions());
+
+            // documents containing the term in any field are counted once
+            LexiconEntry le = index.getLexicon().getLexiconEntry("fox");
+            assertEquals(4, le.getDocumentFrequency());
+            assertEquals(5, le.getFrequency());
+            assertArrayEquals(new int[]{2, 3}, ((FieldEntryStatistics) le).getFieldFrequencies());
+            assertEquals(1, index.getLexicon().getLexiconEntry("dogs").getDocumentFrequency());
+            assertEquals(2, index.getLexicon().getLexiconEntry("the").getDocumentFrequency());
+            assertNull(index.getLexicon().getLexiconEntry("cat"));
+
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            assertTrue(ip instanceof FieldPosting);
+            assertFalse(ip instanceof BlockPosting);
+            assertEquals(0, ip.next());
+            assertEquals(2, ip.getFrequency());
+            assertArrayEquals(new int[]{1, 1}, ((FieldPosting) ip).getFieldFrequencies());
+            assertArrayEquals(new int[]{2, 3}, ((FieldPosting) ip).getFieldLengths());
+            assertEquals(5, ip.getDocumentLength());
+            // lengths set by field-aware matching hold until the next posting
+            ((FieldPosting) ip).setFieldLengths(new int[]{7, 9});
+            assertArrayEquals(new int[]{7, 9}, ((FieldPosting) ip).getFieldLengths());
+            assertEquals(1, ip.next());
+            assertArrayEquals(new int[]{0, 1}, ((FieldPosting) ip).getFieldFrequencies());
+            assertEquals(2, ip.next(2));
+            assertArrayEquals(new int[]{1, 0}, ((FieldPosting) ip).getFieldFrequencies());
+            assertArrayEquals(new int[]{2, 4}, ((FieldPosting) ip).getFieldLengths());
+            assertEquals(3, ip.next());
+            assertEquals(IterablePosting.EOL, ip.next());
+            assertArrayEquals(new int[]{1, 3}, ((FieldDocumentIndex) index.getDocumentIndex()).getFieldLengths(3));
+            assertEquals(4, index.getDocumentIndex().getDocumentLength(3));
+
+            // the lexicon iterator merges the terms of the fields
+            Iterator<Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+            int count = 0;
+            String last = "";
+            while (iter.hasNext())
+            {
+                Entry<String, LexiconEntry> e = iter.next();
+                assertTrue(e.getKey().compareTo(last) > 0);
+                last = e.getKey();
+                if (e.getKey().equals("the"))
+                    assertArrayEquals(new int[]{1, 2}, ((FieldEntryStatistics) e.getValue()).getFieldFrequencies());
+                count++;
+            }
+            assertEquals(13, count);
+            checkFieldDocumentFrequencies(index);
+            doRetrieval(index);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.fields", "");
+        }
+    }
+
+    @Test public void testFieldsRejectedByDirect() throws Exception
+    {
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, true);
+        utils.titles = new String[]{"fox news", "dogs"};
+        IndexReader ir = utils.makeIndexReader(new String[]{"the lazy fox", "the quick dog"}, new String[]{"doc1", "doc2"});
+        LeafReader lr = ir.leaves().get(0).reader();
+        ApplicationSetup.setProperty("lucene.fields", "title,contents");
+        try {
+            new DirectLuceneIndex(lr, tempLocation.getRoot().toString());
+            fail("lucene.fields should be rejected by a direct index");
+        } catch (IllegalArgumentException iae) {
+        } finally {
+            ApplicationSetup.setProperty("lucene.fields", "");
+        }
+        // rejected before any structure of the fields was built
+        assertFalse(Files.exists(UnionDocumentFrequencies.path(lr, new String[]{"title", "contents"})));
+        ir.close();
+    }
+
+    @Test public void testUnionDocumentFrequencies() throws Exception
+    {
+        final int n = 200;
+        String[] docs = new String[n];
+        String[] titles = new String[n];
+        for (int i = 0; i < n; i++) {
+            docs[i] = "term" + (i % 40) + " word" + i;
+            titles[i] = "term" + (i % 60) + " title";
+        }
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, false, false);
+        utils.titles = titles;
+        Path indexLoc = utils.makeIndex(docs, makeDocnos(n));
+        ApplicationSetup.setProperty("lucene.fields", "title,contents");
+        try {
+            LuceneIndex index = (LuceneIndex) IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            assertTrue(Files.exists(UnionDocumentFrequencies.path(index.ir, index.fields)));
+            // the 40 terms of both fields span several blocks
+            assertEquals(40, index.unionFrequencies.numEntries);
+            assertEquals(-1, index.unionFrequencies.get(new BytesRef("title")));
+            assertEquals(-1, index.unionFrequencies.get(new BytesRef("term5x")));
+            // term0 is in the contents of 5 documents and the title of 4, 2 of which are in both
+            assertEquals(7, index.getLexicon().getLexiconEntry("term0").getDocumentFrequency());
+            checkFieldDocumentFrequencies(index);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.fields", "");
+        }
+    }
+
+    /** checks that the document frequencies of the lexicon are the lengths of the postings over
+     * all fields, and that they sum to the number of pointers */
+    static void checkFieldDocumentFrequencies(Index index) throws Exception {
+        Iterator<Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+        long pointers = 0;
+        while (iter.hasNext())
+        {
+            LexiconEntry le = iter.next().getValue();
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            int df = 0;
+            while (ip.next() != IterablePosting.EOL)
+                df++;
+            assertEquals(df, le.getDocumentFrequency());
+            pointers += df;
+        }
+        assertEquals(index.getCollectionStatistics().getNumberOfPointers(), pointers);
+    }
+
+    @Test public void testConverter() throws Exception
+    {
+        String[] docs = new String[]{"hello there fox", "the lazy fox", "the quick brown dog", "a fox again"};
+        String[] docnos = new String[]{"doc1", "doc2", "doc3", "doc4"};
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, true, false, false).makeIndex(docs, docnos);
+        String dest = tempLocation.newFolder("terrier").toString();
+        new LuceneIndexConverter(2).convert(indexLoc.toString(), dest, "data");
+
+        Index index = IndexFactory.of(IndexRef.of(dest + "/data.properties"));
+        assertNotNull(index);
+        assertEquals(4, index.getCollectionStatistics().getNumberOfDocuments());
+        assertEquals(10, index.getCollectionStatistics().getNumberOfUniqueTerms());
+        assertEquals(13, index.getCollectionStatistics().getNumberOfTokens());
+        LexiconEntry le = index.getLexicon().getLexiconEntry("fox");
+        assertEquals(3, le.getDocumentFrequency());
+        // the segments are merged in order, so docids are those of the Lucene index
+        IterablePosting ip = index.getInvertedIndex().getPostings(le);
+        assertEquals(0, ip.next());
+        assertEquals(1, ip.next());
+        assertEquals(3, ip.next());
+        assertEquals(IterablePosting.EOL, ip.next());
+        for (int i = 0; i < docnos.length; i++)
+            assertEquals(docnos[i], index.getMetaIndex().getItem("docno", i));
+        assertEquals(4, index.getDocumentIndex().getDocumentLength(2));
+        index.close();
+    }
+
+    @Test public void testIndexManager() throws Exception
+    {
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, true, false);
+        Path indexLoc = utils.makeIndex(DOCS, DOCNOS);
+        LuceneIndexManager manager = new LuceneIndexManager(indexLoc.toString(), false);
+        CompositeLuceneIndex before = manager.acquire();
+        assertEquals(2, before.getCollectionStatistics().getNumberOfDocuments());
+        // nothing has changed, so the snapshot is kept
+        manager.maybeRefreshBlocking();
+        CompositeLuceneIndex same = manager.acquire();
+        assertSame(before, same);
+        manager.release(same);
+
+        utils.appendToIndex(indexLoc, new String[]{"a fox again"}, new String[]{"doc3"});
+        manager.maybeRefreshBlocking();
+        CompositeLuceneIndex after = manager.acquire();
+        assertEquals(2, after.leaves.length);
+        // the unchanged segment is reused, and only the new one is loaded
+        assertSame(before.leaves[0], after.leaves[0]);
+        assertEquals(3, after.getCollectionStatistics().getNumberOfDocuments());
+        assertEquals(3, after.getLexicon().getLexiconEntry("fox").getDocumentFrequency());
+        assertEquals("doc3", after.getMetaIndex().getItem("docno", 2));
+        doRetrieval(after);
+
+        // the old snapshot is unchanged, and still usable until released
+        assertEquals(2, before.getCollectionStatistics().getNumberOfDocuments());
+        assertEquals(2, before.getLexicon().getLexiconEntry("fox").getDocumentFrequency());
+        doRetrieval(before);
+        manager.release(before);
+        assertEquals(0, ((DirectoryReader) before.reader).getRefCount());
+        manager.release(after);
+        manager.close();
+        assertEquals(0, ((DirectoryReader) after.reader).getRefCount());
+    }
+
+    @Test public void testIndexManagerDeletesRetiredSidecars() throws Exception
+    {
+        LuceneIndexTestUtils utils = new LuceneIndexTestUtils(tempLocation, true, false);
+        Path indexLoc = utils.makeIndex(DOCS, DOCNOS);
+        utils.appendToIndex(indexLoc, new String[]{"a fox again"}, new String[]{"doc3"});
+        ApplicationSetup.setProperty("lucene.docnos", "table");
+        try {
+            LuceneIndexManager manager = new LuceneIndexManager(indexLoc.toString(), false);
+            CompositeLuceneIndex before = manager.acquire();
+            assertEquals(2, before.leaves.length);
+            // builds the docno table of each segment
+            assertEquals("doc1", before.getMetaIndex().getItem("docno", 0));
+            assertEquals("doc3", before.getMetaIndex().getItem("docno", 2));
+            Path[] tables = new Path[before.leaves.length];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = DocnoTable.path(before.leaves[i].ir, LuceneIndex.DOCNO_FIELD);
+                assertTrue(Files.exists(tables[i]));
+            }
+            manager.release(before);
+
+            utils.forceMerge(indexLoc);
+            manager.maybeRefreshBlocking();
+            CompositeLuceneIndex after = manager.acquire();
+            assertEquals(1, after.leaves.length);
+            // the merged segment has sidecar files of its own
+            for (Path table : tables)
+                assertFalse(Files.exists(table));
+            assertEquals("doc3", after.getMetaIndex().getItem("docno", 2));
+            assertTrue(Files.exists(DocnoTable.path(after.leaves[0].ir, LuceneIndex.DOCNO_FIELD)));
+            manager.release(after);
+            manager.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.docnos", "auto");
+        }
+    }
+
+    @Test public void testParallelLeafMatching() throws Exception
+    {
+        String[] docs = new String[]{"hello there fox", "the lazy fox", "the quick brown dog", "a fox fox again", "no match"};
+        String[] docnos = new String[]{"doc1", "doc2", "doc3", "doc4", "doc5"};
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, false, false, false).makeIndex(docs, docnos);
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+        assertTrue(index instanceof CompositeLuceneIndex);
+        Manager m = ManagerFactory._from_(index.getIndexRef());
+
+        SearchRequest single = m.newSearchRequestFromQuery("fox dog");
+        single.setControl(SearchRequest.CONTROL_MATCHING, Full.class.getName());
+        m.runSearchRequest(single);
+
+        SearchRequest parallel = m.newSearchRequestFromQuery("fox dog");
+        parallel.setControl(SearchRequest.CONTROL_MATCHING, ParallelLeafMatching.class.getName());
+        m.runSearchRequest(parallel);
+
+        assertEquals(4, single.getResults().size());
+        assertEquals(single.getResults().size(), parallel.getResults().size());
+        for(int i=0;i<single.getResults().size();i++)
+        {
+            assertEquals(single.getResults().get(i).getDocid(), parallel.getResults().get(i).getDocid());
+            assertEquals(single.getResults().get(i).getScore(), parallel.getResults().get(i).getScore(), 1e-6d);
+        }
+        index.close();
+    }
+
+    @Test public void testParallelLeafMerge() throws Exception
+    {
+        ResultSet[] results = new ResultSet[] {
+            new QueryResultSet(new int[] { 1, 0, 2 }, new double[] { 5, 3, 1 }, new short[] { 1, 1, 1 }),
+            new QueryResultSet(new int[0], new double[0], new short[0]),
+            new QueryResultSet(new int[] { 1, 0 }, new double[] { 4, 3 }, new short[] { 2, 2 }),
+        };
+        for (ResultSet rs : results)
+            rs.setExactResultSize(rs.getResultSize());
+        ResultSet merged = ParallelLeafMatching.merge(results, new int[] { 0, 10, 10 }, 3);
+        // a tie on score is broken by docid, and the merge stops at k
+        assertArrayEquals(new int[] { 1, 11, 0 }, merged.getDocids());
+        assertArrayEquals(new double[] { 5, 4, 3 }, merged.getScores(), 0d);
+        assertArrayEquals(new short[] { 1, 2, 1 }, merged.getOccurrences());
+        assertEquals(5, merged.getExactResultSize());
+        assertEquals(5, ParallelLeafMatching.merge(results, new int[] { 0, 10, 10 }, 1000).getResultSize());
+    }
+
+    static String[] runQueries(Index index, String[] queries) throws Exception {
+        Manager m = ManagerFactory._from_(index.getIndexRef());
+        String[] rtr = new String[queries.length];
+        for (int q = 0; q < queries.length; q++)
+        {
+            SearchRequest srq = m.newSearchRequestFromQuery(queries[q]);
+            srq.setControl(SearchRequest.CONTROL_WMODEL, "BM25");
+            m.runSearchRequest(srq);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < srq.getResults().size(); i++)
+            {
+                int docid = srq.getResults().get(i).getDocid();
+                sb.append(docid).append(':').append(srq.getResults().get(i).getScore()).append(':')
+                    .append(index.getMetaIndex().getItem("docno", docid)).append(' ');
+            }
+            rtr[q] = sb.toString();
+        }
+        return rtr;
+    }
+
+    @Test public void testConcurrentQueries() throws Exception
+    {
+        final int workers = Integer.getInteger("test.concurrent.workers", 8);
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(1000)
+            .setVocabularySize(500)
+            .setMeanDocumentLength(30)
+            .setSegments(4)
+            .setDeletions(0.05)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        final String[] queries = new String[20];
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = SyntheticIndexGenerator.term(i) + " " + SyntheticIndexGenerator.term(i + 50) + " " + SyntheticIndexGenerator.term(i + 200);
+
+        // the docno table is built on first use, here by all workers at once
+        ApplicationSetup.setProperty("lucene.docnos", "table");
+        try {
+            final Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.PREFIX + indexLoc.toString()));
+            final CountDownLatch start = new CountDownLatch(1);
+            final ExecutorService pool = Executors.newFixedThreadPool(workers);
+            final List<Future<String[]>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++)
+            {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return runQueries(index, queries);
+                }));
+            }
+            start.countDown();
+            final List<String[]> results = new ArrayList<>();
+            for (Future<String[]> f : futures)
+                results.add(f.get());
+            pool.shutdown();
+
+            // every worker sees the same results as a single thread
+            final String[] expected = runQueries(index, queries);
+            for (String[] r : results)
+                assertArrayEquals(expected, r);
+            index.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.docnos", "auto");
+        }
+    }
+
+    @Test public void testMultiSegmentDirect() throws Exception
+    {
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, false, true, false).makeIndex(
+            DOCS,
+            DOCNOS);
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + indexLoc.toString()));
+        assertNotNull(index);
+        assertTrue(index instanceof CompositeLuceneIndex);
+        assertTrue(index.hasIndexStructure("direct"));
+        checkDocContents(0, index, new String[]{"hello", "there", "fox"});
+        checkDocContents(1, index, new String[]{"the", "lazy", "fox"});
+
+        //termids are shared by all segments
+        int foxTermId = index.getLexicon().getLexiconEntry("fox").getTermId();
+        assertEquals("fox", index.getLexicon().getLexiconEntry(foxTermId).getKey());
+        for (LuceneIndex leaf : ((CompositeLuceneIndex) index).leaves)
+            assertEquals(foxTermId, leaf.getLexicon().getLexiconEntry("fox").getTermId());
+        index.close();
+    }
+
+    @Test public void testForwardIndex() throws Exception
+    {
+        // the same documents, with and without term vectors
+        SyntheticIndexGenerator generator = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(500)
+            .setVocabularySize(300)
+            .setMeanDocumentLength(15)
+            .setSegments(2);
+        Path vectorsLoc = generator.setTermVectors(true).generate(tempLocation.newFolder("vectors").toPath());
+        Path forwardLoc = generator.setTermVectors(false).generate(tempLocation.newFolder("forward").toPath());
+
+        ApplicationSetup.setProperty("lucene.forward.threads", "3");
+        try {
+            Index vectors = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + vectorsLoc.toString()));
+            Index forward = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + forwardLoc.toString()));
+            assertTrue(forward.hasIndexStructure("direct"));
+            for (LuceneIndex leaf : ((CompositeLuceneIndex) forward).leaves)
+                assertNotNull(((DirectLuceneIndex) leaf).forward);
+            for (int docid = 0; docid < 500; docid++)
+            {
+                DocumentIndexEntry expectedEntry = vectors.getDocumentIndex().getDocumentEntry(docid);
+                DocumentIndexEntry entry = forward.getDocumentIndex().getDocumentEntry(docid);
+                assertEquals(expectedEntry.getNumberOfEntries(), entry.getNumberOfEntries());
+                IterablePosting expected = vectors.getDirectIndex().getPostings(expectedEntry);
+                IterablePosting ip = forward.getDirectIndex().getPostings(entry);
+                while (expected.next() != IterablePosting.EOL)
+                {
+                    // termids are shared by the segments, and the same in both indices
+                    assertEquals(expected.getId(), ip.next());
+                    assertEquals(expected.getFrequency(), ip.getFrequency());
+                    assertEquals(expected.getDocumentLength(), ip.getDocumentLength());
+                    // as the inverted postings, lengths are those of the document index
+                    assertEquals(forward.getDocumentIndex().getDocumentLength(docid), ip.getDocumentLength());
+                }
+                assertEquals(IterablePosting.EOL, ip.next());
+            }
+            doRetrieval(forward);
+            forward.close();
+            vectors.close();
+
+            // the forward index is kept, and reused
+            forward = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + forwardLoc.toString()));
+            LuceneIndex leaf = ((CompositeLuceneIndex) forward).leaves[0];
+            assertTrue(Files.exists(ForwardIndex.path(leaf.ir, LuceneIndex.DEFAULT_FIELD)));
+            assertTrue(forward.getDirectIndex().getPostings(forward.getDocumentIndex().getDocumentEntry(0)).next() != IterablePosting.EOL);
+            forward.close();
+        } finally {
+            ApplicationSetup.setProperty("lucene.forward.threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    @Test public void testForwardIndexRuns() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(500)
+            .setVocabularySize(300)
+            .setMeanDocumentLength(15)
+            .setTermVectors(false)
+            .generate(tempLocation.newFolder("forward").toPath());
+        ApplicationSetup.setProperty("lucene.forward.threads", "3");
+        try (IndexReader ir = DirectoryReader.open(FSDirectory.open(indexLoc))) {
+            LeafReader lr = ir.leaves().get(0).reader();
+            ForwardIndex forward = ForwardIndex.load(lr, LuceneIndex.DEFAULT_FIELD);
+
+            // all documents in one chunk, whose postings exceed one run
+            Path spill = tempLocation.newFile("runs").toPath();
+            ForwardIndex.Runs runs = ForwardIndex.spill(lr, LuceneIndex.DEFAULT_FIELD, lr.maxDoc(), spill);
+            assertTrue(runs.runs[0].size() > 2);
+            byte[] postings;
+            try (FileChannel fc = FileChannel.open(spill, StandardOpenOption.READ)) {
+                postings = runs.read(fc, 0);
+            }
+            ForwardIndex.Chunk chunk = ForwardIndex.invert(postings, 0, lr.maxDoc());
+
+            // the same documents as the forward index built from several chunks
+            byte[] expected = new byte[chunk.data.size()];
+            forward.data.clone().readBytes(expected, 0, expected.length);
+            assertArrayEquals(expected, chunk.data.toByteArray());
+            for (int docid = 0; docid < lr.maxDoc(); docid++)
+                assertEquals(forward.offset(docid), chunk.offsets[docid]);
+        } finally {
+            ApplicationSetup.setProperty("lucene.forward.threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    @Test public void testInputStreams() throws Exception
+    {
+        Path indexLoc = new SyntheticIndexGenerator()
+            .setNumberOfDocuments(300)
+            .setVocabularySize(200)
+            .setMeanDocumentLength(10)
+            .setSegments(2)
+            .setPositions(true)
+            .setTermVectors(true)
+            .generate(tempLocation.newFolder("synthetic").toPath());
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + indexLoc.toString()));
+        assertTrue(index instanceof CompositeLuceneIndex);
+        checkInputStreams(index);
+        checkInputStreams(((CompositeLuceneIndex) index).leaves[0]);
+        index.close();
+    }
+
+    @Test public void testInputStreamsTrailingEmptyDocuments() throws Exception
+    {
+        Path indexLoc = new LuceneIndexTestUtils(tempLocation, true, true).makeIndex(
+            new String[] { "the lazy dog", "", "a quick fox", "", "" },
+            new String[] { "doc1", "doc2", "doc3", "doc4", "doc5" });
+        Index index = IndexFactory.of(IndexRef.of(LuceneIndexFactory.DIRECTPREFIX + indexLoc.toString()));
+        checkInputStreams(index);
+
+        PostingIndexInputStream direct = (PostingIndexInputStream) index.getIndexStructureInputStream("direct");
+        assertTrue(direct.hasNext());
+        assertNotNull(direct.next());
+        assertEquals(0, direct.getEntriesSkipped());
+        assertTrue(direct.hasNext());
+        assertNotNull(direct.next());
+        assertEquals(1, direct.getEntriesSkipped());
+        // only empty documents remain
+        assertFalse(direct.hasNext());
+        direct.close();
+        index.close();
+    }
+
+    /** checks that each input stream reads the same as the random access structure */
+    @SuppressWarnings("unchecked")
+    static void checkInputStreams(Index index) throws Exception {
+        for (String structure : new String[]{"lexicon", "inverted", "document", "meta", "direct"})
+            assertTrue(index.hasIndexStructureInputStream(structure));
+
+        Iterator<Entry<String, LexiconEntry>> lex = (Iterator<Entry<String, LexiconEntry>>) index.getIndexStructureInputStream("lexicon");
+        PostingIndexInputStream inverted = (PostingIndexInputStream) index.getIndexStructureInputStream("inverted");
+        int terms = 0;
+        while (lex.hasNext())
+        {
+            Entry<String, LexiconEntry> e = lex.next();
+            assertTrue(inverted.hasNext());
+            IterablePosting streamed = inverted.next();
+            assertEquals(e.getValue().getDocumentFrequency(), inverted.getNumberOfCurrentPostings());
+            IterablePosting ip = index.getInvertedIndex().getPostings(index.getLexicon().getLexiconEntry(e.getKey()));
+            while (ip.next() != IterablePosting.EOL)
+            {
+                assertEquals(ip.getId(), streamed.next());
+                assertEquals(ip.getFrequency(), streamed.getFrequency());
+                assertArrayEquals(((BlockPosting) ip).getPositions(), ((BlockPosting) streamed).getPositions());
+            }
+            assertEquals(IterablePosting.EOL, streamed.next());
+            terms++;
+        }
+        assertFalse(inverted.hasNext());
+        assertEquals(index.getCollectionStatistics().getNumberOfUniqueTerms(), terms);
+        inverted.close();
+
+        Iterator<DocumentIndexEntry> docs = (Iterator<DocumentIndexEntry>) index.getIndexStructureInputStream("document");
+        Iterator<String[]> meta = (Iterator<String[]>) index.getIndexStructureInputStream("meta");
+        PostingIndexInputStream direct = (PostingIndexInputStream) index.getIndexStructureInputStream("direct");
+        int docid = 0;
+        while (docs.hasNext())
+        {
+            DocumentIndexEntry die = docs.next();
+            assertEquals(index.getDocumentIndex().getDocumentLength(docid), die.getDocumentLength());
+            assertEquals(index.getMetaIndex().getItem("docno", docid), meta.next()[0]);
+            if (die.getNumberOfEntries() > 0)
+            {
+                IterablePosting streamed = direct.next();
+                assertArrayEquals(PostingUtil.getIds(index.getDirectIndex().getPostings(die)), PostingUtil.getIds(streamed));
+            }
+            docid++;
+        }
+        assertFalse(meta.hasNext());
+        assertFalse(direct.hasNext());
+        assertEquals(index.getCollectionStatistics().getNumberOfDocuments(), docid);
+        direct.close();
+    }
+
     static void checkDocContents(int docid, Index index, String[] terms) throws Exception {
         assertNotNull(index.getDirectIndex());
         DocumentIndexEntry die = index.getDocumentIndex().getDocumentEntry(docid);
@@ -155,7 +1267,7 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         }
     }
 
-    private void doRetrieval(LuceneIndex i) throws Exception {
+    private void doRetrieval(Index i) throws Exception {
         Manager m = ManagerFactory._from_(i.getIndexRef());
         SearchRequest srq = m.newSearchRequestFromQuery("fox");
         m.runSearchRequest(srq);
@@ -175,6 +1287,13 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         assertNotNull(index.getLexicon());
         assertNotNull(index.getInvertedIndex());
         assertNotNull(index.getMetaIndex());
+
+        // structures are created once per index
+        assertSame(index.getCollectionStatistics(), index.getCollectionStatistics());
+        assertSame(index.getLexicon(), index.getLexicon());
+        assertSame(index.getInvertedIndex(), index.getInvertedIndex());
+        assertSame(index.getDocumentIndex(), index.getDocumentIndex());
+        assertSame(index.getMetaIndex(), index.getMetaIndex());
         
         assertNotNull(index.getIndexRef());
         assertTrue(index.getIndexRef() instanceof DirectIndexRef);
@@ -185,6 +1304,8 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         assertNotNull(le);
         assertEquals(2, le.getDocumentFrequency());
         assertEquals(2, le.getFrequency());
+        //postings should be opened from the position found by the lexicon lookup
+        assertNotNull(((LuceneIndex.LuceneLexiconEntry) le).termState);
         //unlikely to be present
         //assertEquals(1, le.getMaxFrequencyInDocuments());
 
@@ -207,12 +1328,22 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         assertEquals("lazy", iterRange.next().getKey());
         assertFalse(iterRange.hasNext());
 
+        //reused entries still report the current term
+        Iterator<Entry<String, LexiconEntry>> iterReuse = ((LuceneIndex.LuceneLexicon) index.getLexicon()).iterator(true);
+        Entry<String, LexiconEntry> first = iterReuse.next();
+        assertEquals("fox", first.getKey());
+        assertEquals(2, first.getValue().getDocumentFrequency());
+        assertTrue(first == iterReuse.next());
+        assertEquals("hello", first.getKey());
+        assertEquals(1, first.getValue().getDocumentFrequency());
+
+        iterRange = index.getLexicon().getLexiconEntryRange("zzz", "zzzz");
+        assertFalse(iterRange.hasNext());
+
         //check documentindex
         assertNotNull(index.getDocumentIndex());
-        // assertEquals(3, index.getDocumentIndex().getDocumentEntry(0).getDocumentLength());
-        // assertEquals(3, index.getDocumentIndex().getDocumentEntry(1).getDocumentLength());
-        // assertEquals(3, index.getDocumentIndex().getDocumentLength(0));
-        // assertEquals(3, index.getDocumentIndex().getDocumentLength(1));
+        assertEquals(3, index.getDocumentIndex().getDocumentLength(0));
+        assertEquals(3, index.getDocumentIndex().getDocumentLength(1));
         
         
 
@@ -229,5 +1360,7 @@ public class TestLuceneIndex extends ApplicationSetupBasedTest
         
         assertEquals("doc1", index.getMetaIndex().getItem("docno", 0));
         assertEquals("doc2", index.getMetaIndex().getItem("docno", 1));
+        assertEquals(1, index.getMetaIndex().getDocument("docno", "doc2"));
+        assertEquals(-1, index.getMetaIndex().getDocument("docno", "doc3"));
     }
 }
\ No newline at end of file